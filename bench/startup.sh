@@ -0,0 +1,60 @@
+#!/bin/sh
+#
+# Startup benchmark: average wall-clock time of -g, -e and -d invocations,
+# with and without the Class Data Sharing archive built by
+#
+#   mvn -Pappcds package
+#
+# Usage: bench/startup.sh [runs]   (JAR, JSA and JAVA can be overridden)
+
+RUNS=${1:-20}
+JAR=${JAR:-$(cd "$(dirname "$0")/.." && pwd)/target/rsasample.jar}
+JSA=${JSA:-$(dirname "$JAR")/rsasample.jsa}
+JAVA=${JAVA:-java}
+
+if [ ! -f "$JAR" ]; then
+    echo "No $JAR, run mvn package first" >&2
+    exit 1
+fi
+
+WORK=$(mktemp -d)
+trap 'rm -rf "$WORK"' EXIT
+cd "$WORK" || exit 1
+# a single RSA block, so that startup rather than the cipher dominates
+head -c 150 /dev/urandom | base64 > input.txt
+"$JAVA" -jar "$JAR" -g > /dev/null
+"$JAVA" -jar "$JAR" -e input.txt -k private.key -o input.enc > /dev/null
+# -g overwrites keys in the current directory, so it runs in its own one
+mkdir gen
+
+# prints average milliseconds of RUNS invocations of the given arguments
+measure() {
+    start=$(date +%s%N)
+    i=0
+    while [ $i -lt "$RUNS" ]; do
+        "$JAVA" $JVM_OPTS -jar "$JAR" "$@" > /dev/null
+        i=$((i + 1))
+    done
+    end=$(date +%s%N)
+    echo $(( (end - start) / RUNS / 1000000 ))
+}
+
+run() {
+    label=$1
+    shift
+    JVM_OPTS=$*
+    printf '%-10s -e %5s ms   -d %5s ms   -g %5s ms\n' "$label" \
+        "$(measure -e input.txt -k private.key -o out.enc)" \
+        "$(measure -d input.enc -k public.key -o out.txt)" \
+        "$(cd gen && measure -g)"
+}
+
+echo "Average of $RUNS runs"
+run default
+run tiered -XX:TieredStopAtLevel=1
+if [ -f "$JSA" ]; then
+    run appcds -XX:SharedArchiveFile="$JSA"
+    run appcds+c1 -XX:SharedArchiveFile="$JSA" -XX:TieredStopAtLevel=1
+else
+    echo "No $JSA, build it with mvn -Pappcds package to compare" >&2
+fi
@@ -28,7 +28,7 @@ import com.ivankot.rsasample.runtime.Manager;
 import org.apache.commons.cli.CommandLine;
 
 /**
- * Application entry point, creates a new thread and executes the app
+ * Application entry point, executes the app
  * @author Ivan
  */
 public class Hello {
@@ -40,9 +40,7 @@ public class Hello {
      */
     public static void main(String[] args) {
 
-        ((Runnable) () -> {
-            new Hello().runApp(args);
-        }).run();
+        new Hello().runApp(args);
 
     }
 
@@ -0,0 +1,54 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Ivan.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.ivankot.rsasample;
+
+import com.ivankot.rsasample.runtime.Manager;
+
+/**
+ * Training run for the Class Data Sharing archive: generates keys, then 
+ * encrypts and decrypts the input given (with and without compression) in a 
+ * single JVM, so that everything these actions load ends up in the archive.
+ * Works in the current directory
+ * @author Ivan
+ */
+public class Training {
+
+    /**
+     * @param args path to the file to train on
+     */
+    public static void main(String[] args) {
+
+        String input = args.length > 0 ? args[0] : "pom.xml";
+
+        new Manager(new String[]{"-g"}).orchestrate();
+        new Manager(new String[]{"-e", input, "-k", "private.key", "-o", "training.enc"}).orchestrate();
+        new Manager(new String[]{"-d", "training.enc", "-k", "public.key", "-o", "training.out"}).orchestrate();
+        new Manager(new String[]{"-e", input, "-k", "private.key", "-o", "training.enc", "-z"}).orchestrate();
+        new Manager(new String[]{"-d", "training.enc", "-k", "public.key", "-o", "training.out"}).orchestrate();
+
+    }
+
+}
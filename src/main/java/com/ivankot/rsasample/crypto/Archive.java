@@ -0,0 +1,428 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Ivan.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.ivankot.rsasample.crypto;
+
+import com.ivankot.rsasample.metrics.Metrics;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Archive packs a whole directory tree into a single encrypted file. 
+ * Every entry is encrypted on its own (in parallel) and an encrypted index 
+ * with entry offsets is stored at the end, so a single entry can be 
+ * extracted without decrypting the rest of the archive.
+ * Layout: magic, compression flag, entries, index, index offset, index length, magic
+ * @author Ivan
+ */
+public class Archive {
+
+    /**
+     * Magic bytes at the start and the end of an archive
+     */
+    public static final byte[] MAGIC = "RSAARCH1".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Entries up to this size are encrypted in parallel in memory, larger 
+     * ones are streamed straight into the archive
+     */
+    public static final int MAX_BUFFERED_ENTRY = 4 * 1024 * 1024;
+
+    private static final int TRAILER_SIZE = 2 * Long.BYTES + 8;
+
+    private final Path path;
+    private final List<Entry> entries = new ArrayList<>();
+
+    private boolean compressed = false;
+
+    /**
+     * Creates an archive instance for a file
+     * @param path archive file
+     */
+    public Archive(Path path) {
+        this.path = path;
+    }
+
+    /**
+     * Returns entries packed or read by the last operation
+     * @return list of entries
+     */
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * Packs every regular file of the directory into the archive
+     * @param directory directory to pack
+     * @param key encoded private key
+     * @param compress whether to deflate entries before encryption
+     * @param workers number of entries encrypted at the same time
+     * @return true if the archive was written
+     */
+    public boolean pack(Path directory, byte[] key, boolean compress, int workers) {
+        boolean result = false;
+        Provider.Cipher encryptor = Provider.Cipher.ENCRYPTOR;
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        entries.clear();
+        compressed = compress;
+
+        // a failed pack must not leave a truncated archive under the final name
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+
+        try {
+            try (OutputStream out = Files.newOutputStream(temporary)) {
+                Key cryptoKey = encryptor.loadKey(key);
+                List<Path> files;
+                try (Stream<Path> walk = Files.walk(directory)) {
+                    files = walk.filter(Files::isRegularFile)
+                            .filter(file -> !file.toAbsolutePath().equals(path.toAbsolutePath()))
+                            .filter(file -> !file.toAbsolutePath().equals(temporary.toAbsolutePath()))
+                            .sorted()
+                            .collect(Collectors.toList());
+                }
+
+                out.write(MAGIC);
+                out.write(compress ? 1 : 0);
+                long offset = MAGIC.length + 1;
+
+                // entries are encrypted ahead in parallel but written in order
+                Deque<Future<byte[]>> inFlight = new ArrayDeque<>();
+                Deque<Path> inFlightFiles = new ArrayDeque<>();
+                int next = 0;
+                while (next < files.size() || !inFlight.isEmpty()) {
+                    while (next < files.size() && inFlight.size() < workers * 2) {
+                        Path file = files.get(next++);
+                        inFlightFiles.add(file);
+                        inFlight.add(pool.submit(() -> Files.size(file) <= MAX_BUFFERED_ENTRY
+                                ? encryptEntry(cryptoKey, file, compress)
+                                : null));
+                    }
+                    Path file = inFlightFiles.poll();
+                    byte[] encrypted = inFlight.poll().get();
+                    long length;
+                    if (null != encrypted) {
+                        out.write(encrypted);
+                        length = encrypted.length;
+                    } else {
+                        Streams.CountingOutputStream counter = new Streams.CountingOutputStream(out);
+                        long nanos;
+                        try (InputStream in = Files.newInputStream(file)) {
+                            nanos = encrypt(cryptoKey, in, counter, compress);
+                        }
+                        Metrics.INSTANCE.recordOperation(Metrics.TYPE_ENCRYPT, Files.size(file), nanos, true);
+                        length = counter.getCount();
+                    }
+                    String name = directory.relativize(file).toString().replace(file.getFileSystem().getSeparator(), "/");
+                    entries.add(new Entry(name, offset, length, Files.size(file)));
+                    offset += length;
+                }
+
+                byte[] index = encrypt(cryptoKey, writeIndex(), false);
+                out.write(index);
+                DataOutputStream trailer = new DataOutputStream(out);
+                trailer.writeLong(offset);
+                trailer.writeLong(index.length);
+                trailer.write(MAGIC);
+                trailer.flush();
+            }
+            Streams.replace(temporary, path);
+            result = true;
+        } catch (IOException | GeneralSecurityException | ExecutionException ex) {
+            Logger.getLogger(Archive.class.getName()).log(Level.SEVERE, null, ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            pool.shutdownNow();
+            if (!result) {
+                try {
+                    Files.deleteIfExists(temporary);
+                } catch (IOException ex) {
+                    Logger.getLogger(Archive.class.getName()).log(Level.WARNING, null, ex);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Reads and decrypts the index of the archive, entries are available via
+     * getEntries afterwards
+     * @param key encoded public key
+     * @return true if the index was read
+     */
+    public boolean open(byte[] key) {
+        boolean result = false;
+        entries.clear();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            Key cryptoKey = Provider.Cipher.DECRYPTOR.loadKey(key);
+            long start = MAGIC.length + 1;
+            long end = channel.size() - TRAILER_SIZE;
+            if (end < start) {
+                throw new IOException("Not an archive: " + path);
+            }
+            byte[] header = read(channel, 0, MAGIC.length + 1);
+            byte[] trailerBytes = read(channel, end, TRAILER_SIZE);
+            DataInputStream trailer = new DataInputStream(new ByteArrayInputStream(trailerBytes));
+            long indexOffset = trailer.readLong();
+            long indexLength = trailer.readLong();
+
+            if (!Arrays.equals(MAGIC, Arrays.copyOf(header, MAGIC.length))
+                    || !Arrays.equals(MAGIC, Arrays.copyOfRange(trailerBytes, 2 * Long.BYTES, TRAILER_SIZE))) {
+                throw new IOException("Not an archive: " + path);
+            }
+            if (!isInside(indexOffset, indexLength, start, end) || indexLength > Integer.MAX_VALUE) {
+                throw new IOException("Malformed archive index: " + path);
+            }
+            compressed = header[MAGIC.length] == 1;
+
+            ByteArrayOutputStream index = new ByteArrayOutputStream();
+            decrypt(cryptoKey, new ByteArrayInputStream(read(channel, indexOffset, (int) indexLength)), index, false);
+            readIndex(index.toByteArray(), start, end);
+            result = true;
+        } catch (IOException | GeneralSecurityException ex) {
+            Logger.getLogger(Archive.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        return result;
+    }
+
+    /**
+     * Decrypts a single entry, open has to be called first
+     * @param key encoded public key
+     * @param name name of the entry
+     * @param output stream to write the entry to, it is not closed
+     * @return true if the entry was found and extracted
+     */
+    public boolean extract(byte[] key, String name, OutputStream output) {
+        boolean result = false;
+        Entry entry = entries.stream().filter(item -> item.getName().equals(name)).findFirst().orElse(null);
+        if (null != entry) {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                Key cryptoKey = Provider.Cipher.DECRYPTOR.loadKey(key);
+                InputStream in = new Streams.BoundedInputStream(Channels.newInputStream(channel.position(entry.getOffset())), entry.getLength());
+                long nanos = decrypt(cryptoKey, in, output, compressed);
+                Metrics.INSTANCE.recordOperation(Metrics.TYPE_DECRYPT, entry.getLength(), nanos, true);
+                result = true;
+            } catch (IOException | GeneralSecurityException ex) {
+                Logger.getLogger(Archive.class.getName()).log(Level.SEVERE, null, ex);
+                Metrics.INSTANCE.recordOperation(Metrics.TYPE_DECRYPT, 0, 0, false);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Decrypts every entry into the directory, open has to be called first
+     * @param key encoded public key
+     * @param directory directory to extract to, created if missing
+     * @return true if all entries were extracted
+     */
+    public boolean extractAll(byte[] key, Path directory) {
+        boolean result = true;
+        Path root = directory.toAbsolutePath().normalize();
+        for (Entry entry : entries) {
+            Path target = root.resolve(entry.getName()).normalize();
+            if (!target.startsWith(root)) {
+                Logger.getLogger(Archive.class.getName()).log(Level.SEVERE, "Entry outside of the target directory: {0}", entry.getName());
+                result = false;
+                continue;
+            }
+            try {
+                Files.createDirectories(target.getParent());
+                try (OutputStream out = Files.newOutputStream(target)) {
+                    result &= extract(key, entry.getName(), out);
+                }
+            } catch (IOException ex) {
+                Logger.getLogger(Archive.class.getName()).log(Level.SEVERE, null, ex);
+                result = false;
+            }
+        }
+        return result;
+    }
+
+    private byte[] encryptEntry(Key key, Path file, boolean deflate) throws IOException, GeneralSecurityException {
+        byte[] plain = Files.readAllBytes(file);
+        ByteArrayOutputStream encrypted = new ByteArrayOutputStream(plain.length + plain.length / 8 + 256);
+        long nanos = encrypt(key, new ByteArrayInputStream(plain), encrypted, deflate);
+        Metrics.INSTANCE.recordOperation(Metrics.TYPE_ENCRYPT, plain.length, nanos, true);
+        return encrypted.toByteArray();
+    }
+
+    private byte[] encrypt(Key key, byte[] plain, boolean deflate) throws IOException, GeneralSecurityException {
+        ByteArrayOutputStream encrypted = new ByteArrayOutputStream(plain.length + plain.length / 8 + 256);
+        encrypt(key, new ByteArrayInputStream(plain), encrypted, deflate);
+        return encrypted.toByteArray();
+    }
+
+    private long encrypt(Key key, InputStream in, OutputStream out, boolean deflate) throws IOException, GeneralSecurityException {
+        Provider.Cipher encryptor = Provider.Cipher.ENCRYPTOR;
+        BlockOutputStream blocks = new BlockOutputStream(encryptor.init(key), encryptor.blockSize(key), out);
+        if (deflate) {
+            new Compression().deflate(in, blocks);
+        } else {
+            Streams.copy(in, blocks);
+        }
+        blocks.close();
+        return blocks.getCipherNanos();
+    }
+
+    private long decrypt(Key key, InputStream in, OutputStream out, boolean inflate) throws IOException, GeneralSecurityException {
+        Provider.Cipher decryptor = Provider.Cipher.DECRYPTOR;
+        OutputStream plain = new Streams.UnclosableOutputStream(out);
+        if (inflate) {
+            plain = new Compression().inflate(plain);
+        }
+        BlockOutputStream blocks = new BlockOutputStream(decryptor.init(key), decryptor.blockSize(key), plain);
+        try (OutputStream ciphered = blocks) {
+            Streams.copy(in, ciphered);
+        }
+        return blocks.getCipherNanos();
+    }
+
+    private byte[] writeIndex() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream index = new DataOutputStream(bytes)) {
+            index.writeInt(entries.size());
+            for (Entry entry : entries) {
+                index.writeUTF(entry.getName());
+                index.writeLong(entry.getOffset());
+                index.writeLong(entry.getLength());
+                index.writeLong(entry.getSize());
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    private void readIndex(byte[] bytes, long start, long end) throws IOException {
+        DataInputStream index = new DataInputStream(new ByteArrayInputStream(bytes));
+        int count = index.readInt();
+        for (int i = 0; i < count; i++) {
+            Entry entry = new Entry(index.readUTF(), index.readLong(), index.readLong(), index.readLong());
+            if (!isInside(entry.getOffset(), entry.getLength(), start, end)) {
+                throw new IOException("Malformed archive entry: " + entry.getName());
+            }
+            entries.add(entry);
+        }
+    }
+
+    private static boolean isInside(long offset, long length, long start, long end) {
+        return offset >= start && length >= 0 && offset <= end - length;
+    }
+
+    private static byte[] read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) == -1) {
+                throw new IOException("Unexpected end of archive");
+            }
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Single archive entry
+     */
+    public static class Entry {
+
+        private final String name;
+        private final long offset;
+        private final long length;
+        private final long size;
+
+        /**
+         * Creates an entry
+         * @param name path relative to the packed directory, '/' separated
+         * @param offset offset of the encrypted entry in the archive
+         * @param length length of the encrypted entry
+         * @param size size of the original file
+         */
+        public Entry(String name, long offset, long length, long size) {
+            this.name = name;
+            this.offset = offset;
+            this.length = length;
+            this.size = size;
+        }
+
+        /**
+         * Returns path of the entry relative to the packed directory
+         * @return '/' separated name
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Returns offset of the encrypted entry in the archive
+         * @return offset in bytes
+         */
+        public long getOffset() {
+            return offset;
+        }
+
+        /**
+         * Returns length of the encrypted entry
+         * @return length in bytes
+         */
+        public long getLength() {
+            return length;
+        }
+
+        /**
+         * Returns size of the original file
+         * @return size in bytes
+         */
+        public long getSize() {
+            return size;
+        }
+
+    }
+
+}
@@ -0,0 +1,163 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Ivan.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.ivankot.rsasample.crypto;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.Semaphore;
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+
+/**
+ * Output stream that splits everything written to it into RSA-sized blocks
+ * and passes each block through the cipher before writing it downstream.
+ * RSA can only process a single block per operation, so this is what allows
+ * inputs of any size to be encrypted/decrypted
+ * @author Ivan
+ */
+public class BlockOutputStream extends FilterOutputStream {
+
+    private final Cipher cipher;
+    private final byte[] block;
+    private final Semaphore permits;
+
+    private int position = 0;
+    private long blocks = 0;
+    private long cipherNanos = 0;
+    private boolean closed = false;
+
+    /**
+     * Creates the stream on top of an initialized cipher
+     * @param cipher cipher, already initialized for encryption or decryption
+     * @param blockSize size of a single input block for the cipher
+     * @param out stream to write ciphered blocks to
+     */
+    public BlockOutputStream(Cipher cipher, int blockSize, OutputStream out) {
+        this(cipher, blockSize, out, null);
+    }
+
+    /**
+     * Creates the stream on top of an initialized cipher, every block takes
+     * a permit while it's in the cipher; writing downstream doesn't
+     * @param cipher cipher, already initialized for encryption or decryption
+     * @param blockSize size of a single input block for the cipher
+     * @param out stream to write ciphered blocks to
+     * @param permits permits bounding concurrent cipher work, null for none
+     */
+    public BlockOutputStream(Cipher cipher, int blockSize, OutputStream out, Semaphore permits) {
+        super(out);
+        this.cipher = cipher;
+        this.block = new byte[blockSize];
+        this.permits = permits;
+    }
+
+    /**
+     * Returns number of blocks passed through the cipher so far
+     * @return number of blocks
+     */
+    public long getBlocks() {
+        return blocks;
+    }
+
+    /**
+     * Returns time spent in the cipher so far, waiting for a permit and 
+     * writing downstream are not included
+     * @return time in nanoseconds
+     */
+    public long getCipherNanos() {
+        return cipherNanos;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        block[position++] = (byte) b;
+        if (position == block.length) {
+            writeBlock();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int count = Math.min(len, block.length - position);
+            System.arraycopy(b, off, block, position, count);
+            position += count;
+            off += count;
+            len -= count;
+            if (position == block.length) {
+                writeBlock();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            try {
+                writeBlock();
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    private void writeBlock() throws IOException {
+        if (position > 0) {
+            byte[] processed;
+            acquire();
+            long started = System.nanoTime();
+            try {
+                processed = cipher.doFinal(block, 0, position);
+                cipherNanos += System.nanoTime() - started;
+            } catch (IllegalBlockSizeException | BadPaddingException ex) {
+                throw new IOException("Could not process block " + blocks, ex);
+            } finally {
+                if (null != permits) {
+                    permits.release();
+                }
+            }
+            out.write(processed);
+            position = 0;
+            blocks++;
+        }
+    }
+
+    private void acquire() throws IOException {
+        if (null != permits) {
+            try {
+                permits.acquire();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the cipher");
+            }
+        }
+    }
+
+}
@@ -0,0 +1,332 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Ivan.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+
+package com.ivankot.rsasample.crypto;
+
+import com.ivankot.rsasample.metrics.Histogram;
+import com.ivankot.rsasample.metrics.Metrics;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Coalescer sits in front of a Cipher strategy and collects small requests
+ * per key into batches: a batch goes out once it's full or once the oldest
+ * request has waited for the window. Every batch runs on a warm cipher kept
+ * for its key, so key restore and cipher init are paid once per key and 
+ * worker rather than once per request. RSA has no multi-message operation,
+ * requests of a batch still go through the cipher one after another, their
+ * futures are completed as each one is done.
+ * 
+ * It's a public API for callers with many small payloads under the same key:
+ * Batch sends small files of a directory through it (-Q) and Bench measures
+ * it. Batch sizes and waits are registered as metrics of the operation type.
+ * Close it once submitting is over, requests still queued are processed 
+ * before close returns
+ * @author Ivan
+ */
+public class Coalescer implements AutoCloseable {
+
+    /**
+     * Time a request may wait for its batch to fill when none is given
+     */
+    public static final long DEFAULT_WINDOW_MICROS = 200;
+
+    /**
+     * Number of requests in a full batch when none is given
+     */
+    public static final int DEFAULT_MAX_BATCH = 64;
+
+    private static final String ERR_CLOSED = "Coalescer is closed";
+
+    private final Provider.Cipher strategy;
+    private final long windowNanos;
+    private final int maxBatch;
+    private final String type;
+
+    private final Map<ByteBuffer, Lane> lanes = new ConcurrentHashMap<>();
+    private final Histogram batchSizes = new Histogram(Metrics.BATCH_SIZE_BOUNDS);
+    private final Histogram waits = new Histogram(Metrics.BATCH_WAIT_BOUNDS);
+    private final ExecutorService workers;
+    private final ScheduledExecutorService timer;
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    /**
+     * Creates a coalescer
+     * @param strategy cipher strategy requests are processed with
+     * @param windowMicros longest time a request waits for its batch to fill
+     * @param maxBatch number of requests that makes a batch go out at once
+     * @param workers number of batches processed at the same time
+     */
+    public Coalescer(Provider.Cipher strategy, long windowMicros, int maxBatch, int workers) {
+        this.strategy = strategy;
+        this.windowNanos = TimeUnit.MICROSECONDS.toNanos(windowMicros);
+        this.maxBatch = maxBatch;
+        this.type = (Provider.Cipher.ENCRYPTOR == strategy)
+                ? Metrics.TYPE_ENCRYPT
+                : Metrics.TYPE_DECRYPT;
+        this.workers = Executors.newFixedThreadPool(workers, runnable -> daemon(runnable, "coalescer-worker"));
+        this.timer = Executors.newSingleThreadScheduledExecutor(runnable -> daemon(runnable, "coalescer-timer"));
+        Metrics.INSTANCE.register("coalesced_batch_size", "Requests per coalesced batch", type, batchSizes);
+        Metrics.INSTANCE.register("coalesced_wait_seconds", "Time a request waited for its batch", type, waits);
+    }
+
+    /**
+     * Queues a payload for processing with the key given
+     * @param key encoded key: private key for encryption, public key for 
+     * decryption
+     * @param payload bytes to encrypt or decrypt, must not change until the 
+     * future completes
+     * @return future completed with the processed bytes, or exceptionally if
+     * the key or the payload couldn't be processed, or the coalescer is closed
+     */
+    public CompletableFuture<byte[]> submit(byte[] key, byte[] payload) {
+        if (closed.get()) {
+            CompletableFuture<byte[]> rejected = new CompletableFuture<>();
+            rejected.completeExceptionally(new IllegalStateException(ERR_CLOSED));
+            return rejected;
+        }
+        Lane lane = lanes.computeIfAbsent(ByteBuffer.wrap(key.clone()), Lane::new);
+        Request request = new Request(payload);
+        lane.requests.add(request);
+        int size = lane.size.incrementAndGet();
+        if (closed.get()) {
+            // close() may have failed the lane already, if the request is 
+            // gone a drain or close() has taken it and completes it
+            if (lane.requests.remove(request)) {
+                lane.size.decrementAndGet();
+                request.future.completeExceptionally(new IllegalStateException(ERR_CLOSED));
+            }
+        } else if (size % maxBatch == 0) {
+            // a full batch doesn't wait for the window
+            dispatch(lane);
+        } else {
+            arm(lane);
+        }
+        return request.future;
+    }
+
+    /**
+     * Returns sizes of the batches processed so far
+     * @return histogram of requests per batch
+     */
+    public Histogram getBatchSizes() {
+        return batchSizes;
+    }
+
+    /**
+     * Returns time requests waited for their batch to start
+     * @return histogram of waits in seconds
+     */
+    public Histogram getWaits() {
+        return waits;
+    }
+
+    /**
+     * Stops accepting requests, hands the ones still queued to the workers 
+     * and waits for them to finish. Requests left behind by an interrupt 
+     * are completed exceptionally
+     */
+    @Override
+    public void close() {
+        closed.set(true);
+        timer.shutdownNow();
+        for (Lane lane : lanes.values()) {
+            // batches in flight may take some of these, extra drains find nothing
+            int batches = (lane.size.get() + maxBatch - 1) / maxBatch;
+            for (int i = 0; i < batches; i++) {
+                dispatch(lane);
+            }
+        }
+        workers.shutdown();
+        try {
+            workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException ex) {
+            workers.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        for (Lane lane : lanes.values()) {
+            fail(lane);
+        }
+    }
+
+    private void arm(Lane lane) {
+        if (lane.armed.compareAndSet(false, true)) {
+            try {
+                timer.schedule(() -> {
+                    lane.armed.set(false);
+                    int batches = (lane.size.get() + maxBatch - 1) / maxBatch;
+                    for (int i = 0; i < batches; i++) {
+                        dispatch(lane);
+                    }
+                }, windowNanos, TimeUnit.NANOSECONDS);
+            } catch (RejectedExecutionException ex) {
+                // closing, close() dispatches what's left
+                lane.armed.set(false);
+            }
+        }
+    }
+
+    private void dispatch(Lane lane) {
+        try {
+            workers.execute(() -> drain(lane));
+        } catch (RejectedExecutionException ex) {
+            // closed, close() fails what's left once the workers are done
+        }
+    }
+
+    private void fail(Lane lane) {
+        Request request = lane.requests.poll();
+        while (null != request) {
+            lane.size.decrementAndGet();
+            request.future.completeExceptionally(new IllegalStateException(ERR_CLOSED));
+            request = lane.requests.poll();
+        }
+    }
+
+    private void drain(Lane lane) {
+        Request[] batch = new Request[maxBatch];
+        int count = 0;
+        Request request = lane.requests.poll();
+        while (null != request) {
+            batch[count++] = request;
+            request = (count < maxBatch)
+                    ? lane.requests.poll()
+                    : null;
+        }
+        if (count == 0) {
+            return;
+        }
+        lane.size.addAndGet(-count);
+
+        long started = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            waits.observeNanos(started - batch[i].enqueued);
+        }
+        batchSizes.observe(count);
+
+        Warm warm = lane.idle.poll();
+        try {
+            if (null == warm) {
+                warm = new Warm(lane.key);
+            }
+            for (int i = 0; i < count; i++) {
+                process(warm, batch[i]);
+            }
+            lane.idle.add(warm);
+        } catch (GeneralSecurityException | RuntimeException ex) {
+            // a broken cipher isn't returned, the next batch gets a new one
+            for (int i = 0; i < count; i++) {
+                batch[i].future.completeExceptionally(ex);
+            }
+        }
+
+        if (lane.size.get() > 0) {
+            // leftovers of a partial batch wait for the next window
+            arm(lane);
+        }
+    }
+
+    private void process(Warm warm, Request request) {
+        byte[] payload = request.payload;
+        int blocks = (payload.length + warm.blockSize - 1) / warm.blockSize;
+        ByteArrayOutputStream processed = new ByteArrayOutputStream(Math.max(1, blocks) * warm.outputSize);
+        BlockOutputStream blockStream = new BlockOutputStream(warm.cipher, warm.blockSize, processed);
+        try (OutputStream stream = blockStream) {
+            stream.write(payload);
+        } catch (IOException ex) {
+            Metrics.INSTANCE.recordOperation(type, payload.length, blockStream.getCipherNanos(), false);
+            request.future.completeExceptionally(ex);
+            return;
+        }
+        Metrics.INSTANCE.recordOperation(type, payload.length, blockStream.getCipherNanos(), true);
+        request.future.complete(processed.toByteArray());
+    }
+
+    private static Thread daemon(Runnable runnable, String name) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    private static class Request {
+
+        private final byte[] payload;
+        private final long enqueued = System.nanoTime();
+        private final CompletableFuture<byte[]> future = new CompletableFuture<>();
+
+        Request(byte[] payload) {
+            this.payload = payload;
+        }
+
+    }
+
+    private static class Lane {
+
+        private final byte[] key;
+        private final Queue<Request> requests = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger size = new AtomicInteger();
+        private final AtomicBoolean armed = new AtomicBoolean();
+        // one warm cipher per worker that has processed a batch of this key
+        private final Queue<Warm> idle = new ConcurrentLinkedQueue<>();
+
+        Lane(ByteBuffer key) {
+            this.key = key.array();
+        }
+
+    }
+
+    private class Warm {
+
+        private final javax.crypto.Cipher cipher;
+        private final int blockSize;
+        private final int outputSize;
+
+        Warm(byte[] key) throws GeneralSecurityException {
+            Key restored = strategy.loadKey(key);
+            this.cipher = strategy.init(restored);
+            this.blockSize = strategy.blockSize(restored);
+            this.outputSize = cipher.getOutputSize(blockSize);
+        }
+
+    }
+
+}
@@ -0,0 +1,255 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Ivan.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.ivankot.rsasample.crypto;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterOutputStream;
+
+/**
+ * Optional compression stage that runs in front of encryption and after
+ * decryption. Every RSA block is expensive, so shrinking the plaintext 
+ * reduces the number of cipher operations proportionally.
+ * A compressed file starts with MAGIC ahead of the ciphertext, so decryption
+ * tells compressed files apart on its own. The first byte of the compressed
+ * stream is a flag telling whether the rest of the data was deflated or 
+ * stored as is; compression is skipped when a sample of the input doesn't 
+ * compress well enough
+ * @author Ivan
+ */
+public class Compression {
+
+    /**
+     * Magic bytes (with the format version) written in clear ahead of the
+     * ciphertext of a compressed file
+     */
+    public static final byte[] MAGIC = "RSACMPR1".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Flag for data stored without compression
+     */
+    public static final int FLAG_STORED = 0;
+
+    /**
+     * Flag for data compressed with Deflate
+     */
+    public static final int FLAG_DEFLATED = 1;
+
+    /**
+     * Size of the leading sample used to decide whether to compress
+     */
+    public static final int SAMPLE_SIZE = 64 * 1024;
+
+    /**
+     * Minimal share of the sample that compression has to save to be used
+     */
+    public static final double MIN_SAVING = 0.1;
+
+    private long plainBytes = 0;
+    private long compressedBytes = 0;
+    private int flag = FLAG_STORED;
+
+    /**
+     * Writes the header marking the container as compressed, before any 
+     * ciphertext
+     * @param output stream the ciphertext is written to
+     * @throws IOException on write failure
+     */
+    public static void writeHeader(OutputStream output) throws IOException {
+        output.write(MAGIC);
+    }
+
+    /**
+     * Reads the header of a compressed container, the stream is positioned
+     * at the ciphertext afterwards
+     * @param input stream the ciphertext is read from
+     * @throws IOException if the header is missing or can't be read
+     */
+    public static void readHeader(InputStream input) throws IOException {
+        byte[] header = new byte[MAGIC.length];
+        if (Streams.readFully(input, header) != header.length || !Arrays.equals(MAGIC, header)) {
+            throw new IOException("Missing compression header");
+        }
+    }
+
+    /**
+     * Checks whether a file was encrypted with compression
+     * @param path encrypted file
+     * @return true if the file starts with the compression header
+     * @throws IOException if the file can't be read
+     */
+    public static boolean isCompressed(Path path) throws IOException {
+        byte[] header = new byte[MAGIC.length];
+        try (InputStream input = Files.newInputStream(path)) {
+            return Streams.readFully(input, header) == header.length && Arrays.equals(MAGIC, header);
+        }
+    }
+
+    /**
+     * Compresses input into output, prefixed with the flag. Output is not
+     * closed so that the caller can finalize it
+     * @param input plaintext stream
+     * @param output stream to write the flag and (possibly) compressed data to
+     * @throws IOException on read/write failure
+     */
+    public void deflate(InputStream input, OutputStream output) throws IOException {
+        byte[] sample = new byte[SAMPLE_SIZE];
+        int sampleSize = Streams.readFully(input, sample);
+
+        flag = isCompressible(sample, sampleSize) ? FLAG_DEFLATED : FLAG_STORED;
+        Streams.CountingOutputStream counter = new Streams.CountingOutputStream(output);
+        counter.write(flag);
+
+        if (flag == FLAG_DEFLATED) {
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try {
+                DeflaterOutputStream deflating = new DeflaterOutputStream(counter, deflater, Streams.BUFFER_SIZE);
+                deflating.write(sample, 0, sampleSize);
+                plainBytes = sampleSize + Streams.copy(input, deflating);
+                deflating.finish();
+            } finally {
+                deflater.end();
+            }
+        } else {
+            counter.write(sample, 0, sampleSize);
+            plainBytes = sampleSize + Streams.copy(input, counter);
+        }
+        compressedBytes = counter.getCount();
+    }
+
+    /**
+     * Wraps output in a stream that reads the flag and inflates the rest of 
+     * the data if required. Closing the returned stream closes the output
+     * @param output stream to write plaintext to
+     * @return stream to write decrypted data to
+     */
+    public OutputStream inflate(OutputStream output) {
+        return new InflatingOutputStream(output);
+    }
+
+    /**
+     * Returns the flag that was written or read
+     * @return one of the FLAG_* constants
+     */
+    public int getFlag() {
+        return flag;
+    }
+
+    /**
+     * Returns compression ratio of the last run: plaintext size to compressed size
+     * @return compression ratio, 1.0 if nothing was processed
+     */
+    public double getRatio() {
+        return compressedBytes > 0
+                ? (double) plainBytes / compressedBytes
+                : 1.0;
+    }
+
+    private boolean isCompressible(byte[] sample, int size) {
+        if (size == 0) {
+            return false;
+        }
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(sample, 0, size);
+            deflater.finish();
+            byte[] buffer = new byte[Streams.BUFFER_SIZE];
+            long compressed = 0;
+            while (!deflater.finished()) {
+                compressed += deflater.deflate(buffer);
+            }
+            return compressed < size * (1 - MIN_SAVING);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private class InflatingOutputStream extends FilterOutputStream {
+
+        private Inflater inflater = null;
+        private OutputStream target = null;
+        private Streams.CountingOutputStream plain;
+
+        InflatingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len <= 0) {
+                return;
+            }
+            if (null == target) {
+                flag = b[off] & 0xFF;
+                plain = new Streams.CountingOutputStream(out);
+                if (flag == FLAG_DEFLATED) {
+                    inflater = new Inflater();
+                    target = new InflaterOutputStream(plain, inflater, Streams.BUFFER_SIZE);
+                } else if (flag == FLAG_STORED) {
+                    target = plain;
+                } else {
+                    throw new IOException("Unknown compression flag " + flag);
+                }
+                compressedBytes = 1;
+                off++;
+                len--;
+            }
+            target.write(b, off, len);
+            compressedBytes += len;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                if (null != inflater) {
+                    ((InflaterOutputStream) target).finish();
+                    inflater.end();
+                }
+                if (null != plain) {
+                    plainBytes = plain.getCount();
+                }
+            } finally {
+                out.close();
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,90 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Ivan.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.ivankot.rsasample.crypto;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Digest helpers used for key fingerprints and content hashes
+ * @author Ivan
+ */
+public final class Digests {
+
+    /**
+     * Digest algorithm used throughout the application
+     */
+    public static final String DIGEST_ALG = "SHA-256";
+
+    private Digests() {
+    }
+
+    /**
+     * Creates a new digest instance
+     * @return MessageDigest for DIGEST_ALG
+     * @throws NoSuchAlgorithmException if the algorithm is not available
+     */
+    public static MessageDigest newDigest() throws NoSuchAlgorithmException {
+        return MessageDigest.getInstance(DIGEST_ALG);
+    }
+
+    /**
+     * Hashes the content of a file
+     * @param path file to hash
+     * @return hex digest of the content
+     * @throws IOException on read failure
+     * @throws NoSuchAlgorithmException if the algorithm is not available
+     */
+    public static String hash(Path path) throws IOException, NoSuchAlgorithmException {
+        MessageDigest digest = newDigest();
+        byte[] buffer = new byte[Streams.BUFFER_SIZE];
+        try (InputStream in = Files.newInputStream(path)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return hex(digest.digest());
+    }
+
+    /**
+     * Formats bytes as a lowercase hex string
+     * @param bytes bytes to format
+     * @return hex string
+     */
+    public static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+}
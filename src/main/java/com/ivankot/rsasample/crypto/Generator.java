@@ -24,6 +24,7 @@
 
 package com.ivankot.rsasample.crypto;
 
+import com.ivankot.rsasample.metrics.Metrics;
 import java.io.BufferedWriter;
 import java.io.IOException;
 import java.nio.file.Files;
@@ -77,6 +78,7 @@ public class Generator {
      */
     public boolean generate() {
         boolean result = false;
+        long started = System.nanoTime();
         KeyPair kp = Provider.INSTANCE.getKeychain().generateKeyPair();
         Path publicPath = Paths.get(PUB_KEY_NAME);
         Path privatePath = Paths.get(PRIVATE_KEY_NAME);
@@ -92,6 +94,7 @@ public class Generator {
             setError(ERR_COULD_NOT_CREATE_KP);
         }
 
+        Metrics.INSTANCE.recordOperation(Metrics.TYPE_GENERATE, 0, System.nanoTime() - started, result);
         return result;
     }
 
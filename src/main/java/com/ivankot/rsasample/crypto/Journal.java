@@ -0,0 +1,200 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Ivan.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.ivankot.rsasample.crypto;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Checkpoint journal for chunked (resumable) processing. It starts with a 
+ * header describing the job (input, key, strategy, chunk size) followed by 
+ * one line per durable chunk with the input and output offsets reached.
+ * A rerun of the same job picks up from the last recorded chunk, any other
+ * job starts over
+ * @author Ivan
+ */
+public class Journal {
+
+    /**
+     * Suffix of the journal file, placed next to the output
+     */
+    public static final String JOURNAL_SUFFIX = ".journal";
+
+    /**
+     * Suffix of the partial output file, renamed to the output when done
+     */
+    public static final String PART_SUFFIX = ".part";
+
+    private static final String HEADER_PREFIX = "rsasample-journal 1 ";
+
+    private final Path path;
+    private final Path partPath;
+    private final Path outputPath;
+
+    private FileChannel channel = null;
+    private long inputOffset = 0;
+    private long outputOffset = 0;
+
+    /**
+     * Creates a journal for the output file
+     * @param outputPath final output file
+     */
+    public Journal(Path outputPath) {
+        this.outputPath = outputPath;
+        this.path = outputPath.resolveSibling(outputPath.getFileName() + JOURNAL_SUFFIX);
+        this.partPath = outputPath.resolveSibling(outputPath.getFileName() + PART_SUFFIX);
+    }
+
+    /**
+     * Describes a job so that a journal left by a different one is not reused
+     * @param inputPath input file
+     * @param strategy cipher strategy
+     * @param keyFingerprint fingerprint of the key
+     * @param chunkSize size of input chunks
+     * @return job description
+     * @throws IOException if the input attributes can't be read
+     */
+    public static String describe(Path inputPath, String strategy, String keyFingerprint, long chunkSize) throws IOException {
+        return String.join(" ", strategy, keyFingerprint, String.valueOf(chunkSize),
+                String.valueOf(Files.size(inputPath)),
+                String.valueOf(Files.getLastModifiedTime(inputPath).toMillis()),
+                inputPath.toAbsolutePath().toString());
+    }
+
+    /**
+     * Opens the journal, restoring the last checkpoint if the journal belongs
+     * to the same job and the partial output is intact, otherwise starts anew
+     * @param job job description, see describe
+     * @throws IOException on read/write failure
+     */
+    public void open(String job) throws IOException {
+        String header = HEADER_PREFIX + job;
+        inputOffset = 0;
+        outputOffset = 0;
+
+        if (Files.exists(path) && Files.exists(partPath)) {
+            String content = new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+            // only complete lines count, a torn last line is simply ignored
+            String[] lines = content.substring(0, content.lastIndexOf('\n') + 1).split("\n");
+            if (lines[0].equals(header)) {
+                for (int i = 1; i < lines.length; i++) {
+                    String[] offsets = lines[i].split(" ");
+                    try {
+                        long input = Long.parseLong(offsets[0]);
+                        long output = Long.parseLong(offsets[1]);
+                        inputOffset = input;
+                        outputOffset = output;
+                    } catch (NumberFormatException | ArrayIndexOutOfBoundsException ex) {
+                        break;
+                    }
+                }
+                if (Files.size(partPath) < outputOffset) {
+                    inputOffset = 0;
+                    outputOffset = 0;
+                }
+            }
+        }
+
+        // the journal is compacted to the header and the last checkpoint
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        append(header);
+        if (outputOffset > 0) {
+            append(inputOffset + " " + outputOffset);
+        }
+    }
+
+    /**
+     * Returns the partial output file to write chunks to
+     * @return path of the partial output
+     */
+    public Path getPartPath() {
+        return partPath;
+    }
+
+    /**
+     * Returns input offset of the last durable chunk
+     * @return input offset
+     */
+    public long getInputOffset() {
+        return inputOffset;
+    }
+
+    /**
+     * Returns output offset of the last durable chunk
+     * @return output offset
+     */
+    public long getOutputOffset() {
+        return outputOffset;
+    }
+
+    /**
+     * Records a chunk, should only be called after the chunk was forced to disk
+     * @param inputOffset input offset after the chunk
+     * @param outputOffset output offset after the chunk
+     * @throws IOException on write failure
+     */
+    public void checkpoint(long inputOffset, long outputOffset) throws IOException {
+        append(inputOffset + " " + outputOffset);
+        this.inputOffset = inputOffset;
+        this.outputOffset = outputOffset;
+    }
+
+    /**
+     * Renames the partial output to the final one and removes the journal
+     * @throws IOException on failure, the journal is kept in that case
+     */
+    public void finish() throws IOException {
+        close();
+        Streams.replace(partPath, outputPath);
+        Files.delete(path);
+    }
+
+    /**
+     * Closes the journal, keeping it on disk for a rerun
+     * @throws IOException on failure
+     */
+    public void close() throws IOException {
+        if (null != channel) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    private void append(String line) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        channel.force(false);
+    }
+
+}
@@ -0,0 +1,336 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Ivan.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.ivankot.rsasample.crypto;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Integrity tags for encrypted output: the ciphertext is split into fixed 
+ * size chunks whose digests are the leaves of a Merkle tree. Leaves and the
+ * root sealed with the private key are kept in a sidecar file next to the
+ * output, so that the whole file or only some of its chunks can be checked
+ * with the public key without decrypting anything.
+ * Layout: magic, chunk size, data length, leaf count, leaves, sealed root
+ * @author Ivan
+ */
+public class Merkle {
+
+    /**
+     * Magic bytes at the start of a tree file
+     */
+    public static final byte[] MAGIC = "RSAMRKL1".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Extension of the tree file added to the name of the data file
+     */
+    public static final String EXTENSION = ".merkle";
+
+    /**
+     * Default size of a ciphertext chunk covered by a leaf
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+
+    // leaves and inner nodes are hashed with different prefixes
+    private static final byte PREFIX_LEAF = 0;
+    private static final byte PREFIX_NODE = 1;
+
+    private final Path path;
+    private final Path treePath;
+    private final List<Long> corrupted = new ArrayList<>();
+
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+    private long length = 0;
+    private byte[][] leaves = new byte[0][];
+    private byte[] sealedRoot = null;
+
+    /**
+     * Creates a tree for an encrypted file, the tree file is placed next to it
+     * @param path encrypted file
+     */
+    public Merkle(Path path) {
+        this.path = path;
+        this.treePath = treePath(path);
+    }
+
+    /**
+     * Returns location of the tree file for an encrypted file
+     * @param path encrypted file
+     * @return path of the tree file
+     */
+    public static Path treePath(Path path) {
+        return path.resolveSibling(path.getFileName() + EXTENSION);
+    }
+
+    /**
+     * Returns size of the ciphertext chunks hashed into leaves
+     * @return chunk size in bytes
+     */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Returns number of chunks (leaves) of the tree sealed or read last
+     * @return number of chunks
+     */
+    public int getChunkCount() {
+        return leaves.length;
+    }
+
+    /**
+     * Returns indexes of chunks that failed the last verification
+     * @return list of chunk indexes
+     */
+    public List<Long> getCorrupted() {
+        return corrupted;
+    }
+
+    /**
+     * Hashes the encrypted file in parallel and writes the tree file
+     * @param privateKey encoded private key used to seal the root
+     * @param workers number of chunks hashed at the same time
+     * @return true if the tree file was written
+     */
+    public boolean seal(byte[] privateKey, int workers) {
+        boolean result = false;
+        try {
+            length = Files.size(path);
+            leaves = hashChunks(0, chunkCount(length, chunkSize), workers);
+            Provider.Cipher encryptor = Provider.Cipher.ENCRYPTOR;
+            sealedRoot = encryptor.init(encryptor.loadKey(privateKey)).doFinal(root());
+            write();
+            result = true;
+        } catch (IOException | GeneralSecurityException | InterruptedException | ExecutionException ex) {
+            Logger.getLogger(Merkle.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        return result;
+    }
+
+    /**
+     * Reads the tree file
+     * @return true if the tree file exists and is well-formed
+     */
+    public boolean open() {
+        boolean result = false;
+        if (Files.exists(treePath)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(treePath)))) {
+                byte[] magic = new byte[MAGIC.length];
+                in.readFully(magic);
+                if (Arrays.equals(MAGIC, magic)) {
+                    chunkSize = in.readInt();
+                    length = in.readLong();
+                    int count = in.readInt();
+                    int digestLength = Digests.newDigest().getDigestLength();
+                    // sizes are checked against the tree file before anything is allocated
+                    long remaining = Files.size(treePath) - MAGIC.length - Integer.BYTES - Long.BYTES - Integer.BYTES;
+                    if (chunkSize <= 0 || length < 0 || count != chunkCount(length, chunkSize)
+                            || (long) count * digestLength + Integer.BYTES > remaining) {
+                        throw new IOException("Malformed integrity tags: " + treePath);
+                    }
+                    leaves = new byte[count][];
+                    for (int i = 0; i < leaves.length; i++) {
+                        leaves[i] = new byte[digestLength];
+                        in.readFully(leaves[i]);
+                    }
+                    int sealedLength = in.readInt();
+                    if (sealedLength <= 0 || sealedLength != remaining - (long) count * digestLength - Integer.BYTES) {
+                        throw new IOException("Malformed integrity tags: " + treePath);
+                    }
+                    sealedRoot = new byte[sealedLength];
+                    in.readFully(sealedRoot);
+                    result = true;
+                }
+            } catch (IOException | NoSuchAlgorithmException ex) {
+                Logger.getLogger(Merkle.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Checks the sealed root and every chunk of the encrypted file, chunks
+     * are hashed in parallel; failed chunks are available via getCorrupted
+     * @param publicKey encoded public key matching the sealing private key
+     * @param workers number of chunks hashed at the same time
+     * @return true if the file matches its tree
+     */
+    public boolean verify(byte[] publicKey, int workers) {
+        return verify(publicKey, 0, length, workers);
+    }
+
+    /**
+     * Checks the sealed root and only the chunks covering a byte range of 
+     * the encrypted file
+     * @param publicKey encoded public key matching the sealing private key
+     * @param from first byte of the range
+     * @param to byte after the last one of the range
+     * @param workers number of chunks hashed at the same time
+     * @return true if the chunks match the tree
+     */
+    public boolean verify(byte[] publicKey, long from, long to, int workers) {
+        boolean result = false;
+        corrupted.clear();
+        try {
+            if (isRootValid(publicKey) && Files.size(path) == length) {
+                int first = (int) (Math.max(0, from) / chunkSize);
+                int last = (to > from)
+                        ? (int) Math.min(leaves.length, (Math.min(to, length) - 1) / chunkSize + 1)
+                        : first;
+                byte[][] actual = hashChunks(first, last, workers);
+                for (int i = 0; i < actual.length; i++) {
+                    if (!MessageDigest.isEqual(actual[i], leaves[first + i])) {
+                        corrupted.add((long) first + i);
+                    }
+                }
+                result = corrupted.isEmpty();
+            }
+        } catch (IOException | NoSuchAlgorithmException | InterruptedException | ExecutionException ex) {
+            Logger.getLogger(Merkle.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        return result;
+    }
+
+    private boolean isRootValid(byte[] publicKey) throws NoSuchAlgorithmException {
+        boolean result = false;
+        try {
+            Provider.Cipher decryptor = Provider.Cipher.DECRYPTOR;
+            Key key = decryptor.loadKey(publicKey);
+            result = MessageDigest.isEqual(root(), decryptor.init(key).doFinal(sealedRoot));
+        } catch (GeneralSecurityException ex) {
+            // a root sealed with another key or tampered with
+            Logger.getLogger(Merkle.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        return result;
+    }
+
+    private byte[][] hashChunks(int first, int last, int workers) throws IOException, InterruptedException, ExecutionException {
+        byte[][] digests = new byte[last - first][];
+        int threads = Math.max(1, Math.min(workers, digests.length));
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            // every worker takes every n-th chunk with its own buffer and digest
+            List<Future<Void>> tasks = new ArrayList<>();
+            for (int worker = 0; worker < threads; worker++) {
+                int start = first + worker;
+                tasks.add(pool.submit(() -> {
+                    ByteBuffer buffer = ByteBuffer.allocate(chunkSize);
+                    MessageDigest digest = Digests.newDigest();
+                    for (int chunk = start; chunk < last; chunk += threads) {
+                        long offset = (long) chunk * chunkSize;
+                        buffer.clear();
+                        buffer.limit((int) Math.max(0, Math.min(chunkSize, length - offset)));
+                        int read = 0;
+                        while (buffer.hasRemaining() && read != -1) {
+                            read = channel.read(buffer, offset + buffer.position());
+                        }
+                        digest.update(PREFIX_LEAF);
+                        digest.update(buffer.array(), 0, buffer.position());
+                        digests[chunk - first] = digest.digest();
+                    }
+                    return null;
+                }));
+            }
+            for (Future<Void> task : tasks) {
+                task.get();
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        return digests;
+    }
+
+    private byte[] root() throws NoSuchAlgorithmException {
+        MessageDigest digest = Digests.newDigest();
+        byte[][] level = leaves;
+        while (level.length > 1) {
+            byte[][] parents = new byte[(level.length + 1) / 2][];
+            for (int i = 0; i < parents.length; i++) {
+                if (2 * i + 1 < level.length) {
+                    digest.update(PREFIX_NODE);
+                    digest.update(level[2 * i]);
+                    digest.update(level[2 * i + 1]);
+                    parents[i] = digest.digest();
+                } else {
+                    // an odd node moves up as it is
+                    parents[i] = level[2 * i];
+                }
+            }
+            level = parents;
+        }
+        return level[0];
+    }
+
+    private void write() throws IOException {
+        Path temporary = treePath.resolveSibling(treePath.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+            out.write(MAGIC);
+            out.writeInt(chunkSize);
+            out.writeLong(length);
+            out.writeInt(leaves.length);
+            for (byte[] leaf : leaves) {
+                out.write(leaf);
+            }
+            out.writeInt(sealedRoot.length);
+            out.write(sealedRoot);
+        }
+        Streams.replace(temporary, treePath);
+    }
+
+    private static int chunkCount(long length, int chunkSize) throws IOException {
+        // an empty file still has a single (empty) chunk
+        long count = Math.max(1, (length + chunkSize - 1) / chunkSize);
+        if (count > Integer.MAX_VALUE) {
+            throw new IOException("Too many chunks: " + count);
+        }
+        return (int) count;
+    }
+
+}
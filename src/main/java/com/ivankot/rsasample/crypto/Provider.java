@@ -24,26 +24,36 @@
 
 package com.ivankot.rsasample.crypto;
 
+import com.ivankot.rsasample.metrics.Metrics;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
 import java.security.KeyFactory;
 import java.security.KeyPairGenerator;
 import java.security.NoSuchAlgorithmException;
-import java.security.PrivateKey;
-import java.security.PublicKey;
+import java.security.Key;
+import java.security.interfaces.RSAKey;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.PKCS8EncodedKeySpec;
 import java.security.spec.X509EncodedKeySpec;
 import java.util.Base64;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import javax.crypto.BadPaddingException;
-import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
 
 /**
@@ -123,6 +133,75 @@ public enum Provider {
             return null;
         }
 
+        private final Map<Path, CachedKey> keys = new ConcurrentHashMap<>();
+
+        /**
+         * Reads a Base64-encoded key file as written by the Generator. Keys 
+         * are cached, the file is only read again when its size or 
+         * modification time changes
+         * @param keyPath path to the key file
+         * @return encoded key bytes, null if the file could not be read
+         */
+        public byte[] readKey(Path keyPath) {
+            byte[] keyBytes = null;
+            long started = System.nanoTime();
+            try {
+                Path path = keyPath.toAbsolutePath();
+                BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                CachedKey cached = keys.get(path);
+                if (null != cached && cached.matches(attributes)) {
+                    keyBytes = cached.getEncoded();
+                    Metrics.INSTANCE.recordKeyLoad(System.nanoTime() - started, true);
+                } else {
+                    List<String> lines = Files.readAllLines(path);
+                    keyBytes = Base64.getDecoder().decode(String.join("", lines));
+                    keys.put(path, new CachedKey(attributes, keyBytes));
+                    Metrics.INSTANCE.recordKeyLoad(System.nanoTime() - started, false);
+                }
+            } catch (IOException | IllegalArgumentException ex) {
+                Logger.getLogger(Provider.class.getName()).log(Level.SEVERE, null, ex);
+            }
+            return keyBytes;
+        }
+
+        /**
+         * Calculates a fingerprint of an encoded key, used to tell whether 
+         * stored state was produced with the same key
+         * @param encoded encoded key bytes
+         * @return hex SHA-256 of the key
+         */
+        public String fingerprint(byte[] encoded) {
+            String fingerprint = null;
+            try {
+                fingerprint = Digests.hex(Digests.newDigest().digest(encoded));
+            } catch (NoSuchAlgorithmException ex) {
+                Logger.getLogger(Provider.class.getName()).log(Level.SEVERE, null, ex);
+            }
+            return fingerprint;
+        }
+
+    }
+
+    private static class CachedKey {
+
+        private final long size;
+        private final FileTime modified;
+        private final byte[] encoded;
+
+        CachedKey(BasicFileAttributes attributes, byte[] encoded) {
+            this.size = attributes.size();
+            this.modified = attributes.lastModifiedTime();
+            this.encoded = encoded;
+        }
+
+        boolean matches(BasicFileAttributes attributes) {
+            return size == attributes.size() && modified.equals(attributes.lastModifiedTime());
+        }
+
+        byte[] getEncoded() {
+            return encoded;
+        }
+
     }
 
     /**
@@ -147,22 +226,77 @@ public enum Provider {
          */
         public static final String CRYPTO_ALG = "RSA";
 
+        /**
+         * Number of bytes PKCS#1 v1.5 padding (the default for RSA) takes 
+         * out of every encrypted block
+         */
+        public static final int PADDING_OVERHEAD = 11;
+
+        /**
+         * Default size of an input chunk for resumable processing
+         */
+        public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+
         private static final String STRATEGY_ENCRYPT = "encrypt";
         private static final String STRATEGY_DECRYPT = "decrypt";
 
         private final String strategy;
-        private final Builder builder = new Builder();
 
         private Cipher(String strategy) {
             this.strategy = strategy;
         }
         
         /**
-         * Gets the builder class for Cipher
+         * Gets a new builder for Cipher, every task gets its own so that 
+         * several of them can run at the same time
          * @return Builder builder class
          */
         public Builder builder() {
-            return builder.get(strategy);
+            return new Builder().get(strategy);
+        }
+
+        /**
+         * Restores the key used by this cipher from its encoded form: private
+         * key for encryption, public key for decryption
+         * @param encoded encoded key bytes (PKCS#8 or X.509)
+         * @return Key ready to initialize a cipher with
+         * @throws NoSuchAlgorithmException if RSA is not available
+         * @throws InvalidKeySpecException if the bytes are not a valid key
+         */
+        public Key loadKey(byte[] encoded) throws NoSuchAlgorithmException, InvalidKeySpecException {
+            KeyFactory factory = KeyFactory.getInstance(CRYPTO_ALG);
+            return strategy.equals(STRATEGY_ENCRYPT)
+                    ? factory.generatePrivate(new PKCS8EncodedKeySpec(encoded))
+                    : factory.generatePublic(new X509EncodedKeySpec(encoded));
+        }
+
+        /**
+         * Creates a JCA cipher initialized with the key for this strategy
+         * @param key key returned by loadKey
+         * @return initialized cipher
+         * @throws NoSuchAlgorithmException if RSA is not available
+         * @throws NoSuchPaddingException if the default padding is not available
+         * @throws InvalidKeyException if the key doesn't fit the strategy
+         */
+        public javax.crypto.Cipher init(Key key) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException {
+            javax.crypto.Cipher cipher = javax.crypto.Cipher.getInstance(CRYPTO_ALG);
+            cipher.init(strategy.equals(STRATEGY_ENCRYPT)
+                    ? javax.crypto.Cipher.ENCRYPT_MODE
+                    : javax.crypto.Cipher.DECRYPT_MODE, key);
+            return cipher;
+        }
+
+        /**
+         * Calculates size of a single input block for the key: modulus size
+         * minus padding for encryption, modulus size for decryption
+         * @param key RSA key used by the cipher
+         * @return block size in bytes
+         */
+        public int blockSize(Key key) {
+            int overhead = strategy.equals(STRATEGY_ENCRYPT)
+                    ? PADDING_OVERHEAD
+                    : 0;
+            return (((RSAKey) key).getModulus().bitLength() + 7) / 8 - overhead;
         }
 
         /**
@@ -178,6 +312,17 @@ public enum Provider {
             private String output = OUTPUT_STDOUT;
             private boolean background = false;
             private boolean verbose = false;
+            private boolean compress = false;
+            private Compression compression = null;
+            private boolean resume = false;
+            private int chunkSize = DEFAULT_CHUNK_SIZE;
+            private boolean integrity = false;
+            private Semaphore cpuPermits = null;
+            private int bufferSize = Streams.BUFFER_SIZE;
+            private long rangeStart = -1;
+            private long rangeEnd = -1;
+            // time spent in the cipher by the last run, reported to the metrics
+            private long cipherNanos = 0;
 
             /**
              * Gets a Builder with a pre-defined strategy, normally used internally
@@ -241,6 +386,109 @@ public enum Provider {
                 return this;
             }
 
+            /**
+             * Tells the app to deflate input before encryption, decryption 
+             * detects compressed input on its own and ignores this
+             * @param compress whether to use the compression stage
+             * @return Builder instance
+             */
+            public Builder compress(boolean compress) {
+                this.compress = compress;
+                return this;
+            }
+
+            /**
+             * Tells the app to process input in chunks, recording every
+             * durable chunk in a journal next to the output, so that a rerun
+             * of an interrupted job resumes where it stopped. Output is 
+             * written to a partial file and renamed when complete
+             * @param resume whether to use resumable chunked processing
+             * @return Builder instance
+             */
+            public Builder resume(boolean resume) {
+                this.resume = resume;
+                return this;
+            }
+
+            /**
+             * Sets the input chunk size for resumable processing, rounded down
+             * to whole cipher blocks
+             * @param chunkSize chunk size in bytes
+             * @return Builder instance
+             */
+            public Builder chunkSize(int chunkSize) {
+                this.chunkSize = chunkSize;
+                return this;
+            }
+
+            /**
+             * Tells the app to write integrity tags (a Merkle tree of chunk
+             * digests, see Merkle) next to the encrypted output file
+             * @param integrity whether to write integrity tags
+             * @return Builder instance
+             */
+            public Builder integrity(boolean integrity) {
+                this.integrity = integrity;
+                return this;
+            }
+
+            /**
+             * Tells the app to decrypt only a range of the plaintext. Only
+             * the cipher blocks covering the range are read and decrypted, 
+             * and the chunks they belong to are checked against the integrity
+             * tags of the input first. Not available for compressed input
+             * @param start first plaintext byte
+             * @param end byte after the last plaintext byte
+             * @return Builder instance
+             */
+            public Builder range(long start, long end) {
+                this.rangeStart = start;
+                this.rangeEnd = end;
+                return this;
+            }
+
+            /**
+             * Sets the size of the buffer input is read with
+             * @param bufferSize buffer size in bytes
+             * @return Builder instance
+             */
+            public Builder bufferSize(int bufferSize) {
+                this.bufferSize = bufferSize;
+                return this;
+            }
+
+            /**
+             * Bounds cipher work shared by many builders: every cipher block
+             * takes a permit, reading and writing don't. Meant for running
+             * many builders on virtual threads
+             * @param cpuPermits shared permits, null for none
+             * @return Builder instance
+             */
+            public Builder cpuPermits(Semaphore cpuPermits) {
+                this.cpuPermits = cpuPermits;
+                return this;
+            }
+
+            /**
+             * Tells whether the last run went through the compression stage
+             * @return true if input was compressed or compressed input was
+             * detected
+             */
+            public boolean isCompressed() {
+                return null != compression;
+            }
+
+            /**
+             * Returns the compression ratio of the last run (plaintext size to
+             * compressed size)
+             * @return compression ratio, 1.0 if compression was not used
+             */
+            public double getCompressionRatio() {
+                return (null != compression)
+                        ? compression.getRatio()
+                        : 1.0;
+            }
+
             /**
              * An analogy to Java's own cipher, does the encryption/decryption
              * @return boolean result of the operation, always true for background
@@ -257,77 +505,264 @@ public enum Provider {
                 return cipher();
             }
 
-            private byte[] encrypt(byte[] key, byte[] input) {
-                byte[] encrypted = null;
+            private boolean encrypt(byte[] key, InputStream input, OutputStream output) {
+                boolean result = false;
                 try {
-                    PrivateKey privateKey = KeyFactory.getInstance(CRYPTO_ALG).generatePrivate(new PKCS8EncodedKeySpec(key));
-                    javax.crypto.Cipher cipher = javax.crypto.Cipher.getInstance(CRYPTO_ALG);
-                    cipher.init(javax.crypto.Cipher.ENCRYPT_MODE, privateKey);
-                    encrypted = cipher.doFinal(input);
-                } catch (NoSuchAlgorithmException | InvalidKeySpecException | NoSuchPaddingException | InvalidKeyException | IllegalBlockSizeException | BadPaddingException ex) {
+                    Key privateKey = loadKey(key);
+                    if (null != compression) {
+                        Compression.writeHeader(output);
+                    }
+                    BlockOutputStream blocks = new BlockOutputStream(init(privateKey), blockSize(privateKey), output, cpuPermits);
+                    try (OutputStream plain = blocks) {
+                        if (null != compression) {
+                            compression.deflate(input, plain);
+                        } else {
+                            Streams.copy(input, plain, bufferSize);
+                        }
+                    }
+                    cipherNanos += blocks.getCipherNanos();
+                    result = true;
+                } catch (NoSuchAlgorithmException | InvalidKeySpecException | NoSuchPaddingException | InvalidKeyException | IOException ex) {
                     Logger.getLogger(Provider.class.getName()).log(Level.SEVERE, null, ex);
                 }
-                return encrypted;
+                return result;
             }
 
-            private byte[] decrypt(byte[] key, byte[] input) {
-                byte[] decrypted = null;
+            private boolean decrypt(byte[] key, InputStream input, OutputStream output) {
+                boolean result = false;
                 try {
-                    PublicKey publicKey = KeyFactory.getInstance(CRYPTO_ALG).generatePublic(new X509EncodedKeySpec(key));
-                    javax.crypto.Cipher cipher = javax.crypto.Cipher.getInstance(CRYPTO_ALG);
-                    cipher.init(javax.crypto.Cipher.DECRYPT_MODE, publicKey);
-                    decrypted = cipher.doFinal(input);
-                } catch (NoSuchAlgorithmException | InvalidKeySpecException | NoSuchPaddingException | InvalidKeyException | IllegalBlockSizeException | BadPaddingException ex) {
+                    Key publicKey = loadKey(key);
+                    OutputStream plain = output;
+                    if (null != compression) {
+                        Compression.readHeader(input);
+                        plain = compression.inflate(output);
+                    }
+                    BlockOutputStream blocks = new BlockOutputStream(init(publicKey), blockSize(publicKey), plain, cpuPermits);
+                    try (OutputStream ciphered = blocks) {
+                        Streams.copy(input, ciphered, bufferSize);
+                    }
+                    cipherNanos += blocks.getCipherNanos();
+                    result = true;
+                } catch (NoSuchAlgorithmException | InvalidKeySpecException | NoSuchPaddingException | InvalidKeyException | IOException ex) {
                     Logger.getLogger(Provider.class.getName()).log(Level.SEVERE, null, ex);
                 }
-                return decrypted;
+                return result;
 
             }
 
-            private byte[] readKey(Path keyPath) {
-                byte[] keyBytes = null;
+            private boolean cipherStream(byte[] key, Path inputPath, Path outputPath) {
+                boolean result = false;
+                boolean toStdout = output.equals(OUTPUT_STDOUT);
+                ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+                // a failed run must not leave a partial output behind
+                Path temporary = outputPath.resolveSibling(outputPath.getFileName() + ".tmp");
+
                 try {
-                    List<String> lines = Files.readAllLines(keyPath);
-                    keyBytes = Base64.getDecoder().decode(String.join("", lines));
+                    try (InputStream in = Files.newInputStream(inputPath);
+                            OutputStream out = toStdout ? buffer : Files.newOutputStream(temporary)) {
+                        result = (strategy.equals(STRATEGY_ENCRYPT))
+                                ? encrypt(key, in, out)
+                                : decrypt(key, in, out);
+                    }
+                    if (result && !toStdout) {
+                        Streams.replace(temporary, outputPath);
+                    }
                 } catch (IOException ex) {
                     Logger.getLogger(Provider.class.getName()).log(Level.SEVERE, null, ex);
+                    result = false;
+                } finally {
+                    if (!result && !toStdout) {
+                        try {
+                            Files.deleteIfExists(temporary);
+                        } catch (IOException ex) {
+                            Logger.getLogger(Provider.class.getName()).log(Level.WARNING, null, ex);
+                        }
+                    }
+                }
+
+                if (result && toStdout) {
+
+                    String cipheredString = strategy.equals(STRATEGY_ENCRYPT)
+                            ? Base64.getEncoder().encodeToString(buffer.toByteArray())
+                            : new String(buffer.toByteArray());
+
+                    System.out.println(cipheredString);
+
                 }
-                return keyBytes;
+
+                return result;
+            }
+
+            private boolean cipherChunked(byte[] key, Path inputPath, Path outputPath) {
+                boolean result = false;
+                Journal journal = new Journal(outputPath);
+                try {
+                    Key cryptoKey = loadKey(key);
+                    javax.crypto.Cipher cipher = init(cryptoKey);
+                    int blockSize = blockSize(cryptoKey);
+                    int chunk = Math.max(1, chunkSize / blockSize) * blockSize;
+                    journal.open(Journal.describe(inputPath, strategy, Keychain.INSTANCE.fingerprint(key), chunk));
+
+                    try (FileChannel in = FileChannel.open(inputPath, StandardOpenOption.READ);
+                            FileChannel out = FileChannel.open(journal.getPartPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                        out.truncate(journal.getOutputOffset());
+                        long inputOffset = journal.getInputOffset();
+                        long outputOffset = journal.getOutputOffset();
+                        long size = in.size();
+                        ByteBuffer plain = ByteBuffer.allocate(chunk);
+                        ByteArrayOutputStream ciphered = new ByteArrayOutputStream(chunk + chunk / 8);
+
+                        while (inputOffset < size) {
+                            plain.clear();
+                            plain.limit((int) Math.min(chunk, size - inputOffset));
+                            while (plain.hasRemaining()) {
+                                if (in.read(plain, inputOffset + plain.position()) == -1) {
+                                    throw new IOException("Input shrank to " + (inputOffset + plain.position())
+                                            + " bytes while processing, expected " + size);
+                                }
+                            }
+                            ciphered.reset();
+                            BlockOutputStream blocks = new BlockOutputStream(cipher, blockSize, ciphered, cpuPermits);
+                            try (OutputStream stream = blocks) {
+                                stream.write(plain.array(), 0, plain.position());
+                            }
+                            cipherNanos += blocks.getCipherNanos();
+                            ByteBuffer chunkOut = ByteBuffer.wrap(ciphered.toByteArray());
+                            while (chunkOut.hasRemaining()) {
+                                out.write(chunkOut, outputOffset + chunkOut.position());
+                            }
+                            out.force(false);
+                            inputOffset += plain.position();
+                            outputOffset += ciphered.size();
+                            journal.checkpoint(inputOffset, outputOffset);
+                        }
+                    }
+                    journal.finish();
+                    result = true;
+                } catch (NoSuchAlgorithmException | InvalidKeySpecException | NoSuchPaddingException | InvalidKeyException | IOException ex) {
+                    Logger.getLogger(Provider.class.getName()).log(Level.SEVERE, null, ex);
+                } finally {
+                    try {
+                        journal.close();
+                    } catch (IOException ex) {
+                        Logger.getLogger(Provider.class.getName()).log(Level.SEVERE, null, ex);
+                    }
+                }
+                return result;
+            }
+
+            private boolean cipherRange(byte[] key, Path inputPath, Path outputPath) {
+                boolean result = false;
+                boolean toStdout = output.equals(OUTPUT_STDOUT);
+                // a failed run must not leave a partial output behind
+                Path temporary = outputPath.resolveSibling(outputPath.getFileName() + ".tmp");
+                try {
+                    Key publicKey = loadKey(key);
+                    javax.crypto.Cipher cipher = init(publicKey);
+                    int blockSize = blockSize(publicKey);
+                    int plainBlockSize = blockSize - PADDING_OVERHEAD;
+                    long firstBlock = rangeStart / plainBlockSize;
+                    long lastBlock = Math.min((rangeEnd - 1) / plainBlockSize, Files.size(inputPath) / blockSize - 1);
+                    Merkle merkle = new Merkle(inputPath);
+                    boolean tagged = merkle.open();
+
+                    if (tagged && merkle.verify(key, firstBlock * blockSize, (lastBlock + 1) * blockSize,
+                            Runtime.getRuntime().availableProcessors())) {
+                        try (FileChannel in = FileChannel.open(inputPath, StandardOpenOption.READ);
+                                OutputStream out = toStdout ? new Streams.UnclosableOutputStream(System.out) : Files.newOutputStream(temporary)) {
+                            ByteBuffer block = ByteBuffer.allocate(blockSize);
+                            long skip = rangeStart - firstBlock * plainBlockSize;
+                            long remaining = rangeEnd - rangeStart;
+                            for (long index = firstBlock; index <= lastBlock && remaining > 0; index++) {
+                                block.clear();
+                                int read = 0;
+                                while (block.hasRemaining() && read != -1) {
+                                    read = in.read(block, index * blockSize + block.position());
+                                }
+                                long started = System.nanoTime();
+                                byte[] plain = cipher.doFinal(block.array(), 0, block.position());
+                                cipherNanos += System.nanoTime() - started;
+                                int count = (int) Math.max(0, Math.min(plain.length - skip, remaining));
+                                out.write(plain, (int) Math.min(skip, plain.length), count);
+                                remaining -= count;
+                                skip = 0;
+                            }
+                        }
+                        if (!toStdout) {
+                            Streams.replace(temporary, outputPath);
+                        }
+                        result = true;
+                    } else if (!tagged) {
+                        Logger.getLogger(Provider.class.getName()).log(Level.SEVERE, "No valid integrity tags found at {0}", Merkle.treePath(inputPath));
+                    } else if (merkle.getCorrupted().isEmpty()) {
+                        Logger.getLogger(Provider.class.getName()).log(Level.SEVERE, "Integrity tags of {0} don't match the key or the size of the file", inputPath);
+                    } else {
+                        Logger.getLogger(Provider.class.getName()).log(Level.SEVERE, "Integrity check failed for {0}, corrupted chunks: {1}",
+                                new Object[]{inputPath, merkle.getCorrupted()});
+                    }
+                } catch (GeneralSecurityException | IOException ex) {
+                    Logger.getLogger(Provider.class.getName()).log(Level.SEVERE, null, ex);
+                } finally {
+                    if (!result && !toStdout) {
+                        try {
+                            Files.deleteIfExists(temporary);
+                        } catch (IOException ex) {
+                            Logger.getLogger(Provider.class.getName()).log(Level.WARNING, null, ex);
+                        }
+                    }
+                }
+                return result;
+            }
+
+            private boolean isCompressed(Path inputPath) {
+                boolean result = compress;
+                if (strategy.equals(STRATEGY_DECRYPT)) {
+                    try {
+                        result = Compression.isCompressed(inputPath);
+                    } catch (IOException ex) {
+                        Logger.getLogger(Provider.class.getName()).log(Level.SEVERE, null, ex);
+                        result = false;
+                    }
+                }
+                return result;
             }
 
             private boolean cipher() {
                 boolean result = false;
                 Path inputPath = Paths.get(input);
-                Path outputPath = Paths.get(output);
+                Path outputPath = Paths.get(output).toAbsolutePath();
                 Path keyPath = Paths.get(key);
                 
                 if (Files.exists(keyPath) && Files.exists(inputPath)
                         && (output.equals(OUTPUT_STDOUT)
                         || (Files.exists(outputPath) && Files.isWritable(outputPath))
                         || (!Files.exists(outputPath) && Files.isWritable(outputPath.getParent())))) {
-                    try {
-                        byte[] keyBytes = readKey(keyPath);
-                        byte[] inputBytes = Files.readAllBytes(inputPath);
-                        byte[] encodedBytes = (strategy.equals(STRATEGY_ENCRYPT))
-                                ? encrypt(keyBytes, inputBytes)
-                                : decrypt(keyBytes, inputBytes);
-
-                        if (output.equals(OUTPUT_STDOUT)) {
-                            
-                            String cipheredString = strategy.equals(STRATEGY_ENCRYPT)
-                                    ? Base64.getEncoder().encodeToString(encodedBytes)
-                                    : new String(encodedBytes);
-                            
-                            System.out.println(cipheredString);
-                            
+                    byte[] keyBytes = Keychain.INSTANCE.readKey(keyPath);
+                    cipherNanos = 0;
+                    boolean compressed = isCompressed(inputPath);
+                    compression = compressed ? new Compression() : null;
+
+                    if (null != keyBytes) {
+                        if (rangeStart >= 0 && compressed) {
+                            Logger.getLogger(Provider.class.getName()).log(Level.SEVERE, "Range is not available for compressed input {0}", inputPath);
+                        } else if (rangeStart >= 0 && strategy.equals(STRATEGY_DECRYPT)) {
+                            result = cipherRange(keyBytes, inputPath, outputPath);
                         } else {
-                            Files.write(outputPath, encodedBytes, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                            result = (resume && !compressed && !output.equals(OUTPUT_STDOUT))
+                                    ? cipherChunked(keyBytes, inputPath, outputPath)
+                                    : cipherStream(keyBytes, inputPath, outputPath);
+                        }
+
+                        if (result && integrity && strategy.equals(STRATEGY_ENCRYPT) && !output.equals(OUTPUT_STDOUT)) {
+                            result = new Merkle(outputPath).seal(keyBytes, Runtime.getRuntime().availableProcessors());
                         }
-                        result = true;
-                    } catch (IOException ex) {
-                        Logger.getLogger(Provider.class.getName()).log(Level.SEVERE, null, ex);
                     }
 
+                    Metrics.INSTANCE.recordOperation(strategy, inputPath.toFile().length(), cipherNanos, result);
+
+                } else {
+                    Metrics.INSTANCE.recordOperation(strategy, 0, 0, false);
                 }
 
                 return result;
@@ -0,0 +1,217 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Ivan.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.ivankot.rsasample.crypto;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.Base64;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Detached RSA signatures over a SHA-256 hash of the input, as opposed to 
+ * encrypting the input itself with the private key. Input of any size is
+ * streamed through the hash. Signatures are stored Base64-encoded in a 
+ * sidecar file next to the signed file, the same way keys are stored.
+ * A Signer holds one Signature instance and is meant to be used by a single
+ * thread, so that it can be reused for many files
+ * @author Ivan
+ */
+public class Signer {
+
+    /**
+     * Signature algorithm
+     */
+    public static final String SIGNATURE_ALG = "SHA256withRSA";
+
+    /**
+     * Extension of the signature file added to the name of the signed file
+     */
+    public static final String EXTENSION = ".sig";
+
+    private final Signature signature;
+    private final byte[] buffer = new byte[Streams.BUFFER_SIZE];
+    private PrivateKey privateKey = null;
+    private PublicKey publicKey = null;
+    private Semaphore permits = null;
+
+    private Signer() throws GeneralSecurityException {
+        this.signature = Signature.getInstance(SIGNATURE_ALG);
+    }
+
+    /**
+     * Creates a signer for signing
+     * @param privateKey encoded private key
+     * @return Signer instance
+     * @throws GeneralSecurityException if the key can't be restored
+     */
+    public static Signer forSigning(byte[] privateKey) throws GeneralSecurityException {
+        Signer signer = new Signer();
+        signer.privateKey = (PrivateKey) Provider.Cipher.ENCRYPTOR.loadKey(privateKey);
+        return signer;
+    }
+
+    /**
+     * Creates a signer for verification
+     * @param publicKey encoded public key
+     * @return Signer instance
+     * @throws GeneralSecurityException if the key can't be restored
+     */
+    public static Signer forVerification(byte[] publicKey) throws GeneralSecurityException {
+        Signer signer = new Signer();
+        signer.publicKey = (PublicKey) Provider.Cipher.DECRYPTOR.loadKey(publicKey);
+        return signer;
+    }
+
+    /**
+     * Bounds the RSA operation at the end of signing or verification with
+     * permits shared by many signers, hashing the input doesn't take one
+     * @param permits shared permits, null for none
+     * @return Signer instance
+     */
+    public Signer permits(Semaphore permits) {
+        this.permits = permits;
+        return this;
+    }
+
+    /**
+     * Returns location of the signature file for a file
+     * @param path signed file
+     * @return path of the signature file
+     */
+    public static Path signaturePath(Path path) {
+        return path.resolveSibling(path.getFileName() + EXTENSION);
+    }
+
+    /**
+     * Signs a stream
+     * @param input stream to sign, read to the end
+     * @return signature bytes
+     * @throws GeneralSecurityException if signing fails
+     * @throws IOException on read failure
+     */
+    public byte[] sign(InputStream input) throws GeneralSecurityException, IOException {
+        signature.initSign(privateKey);
+        update(input);
+        acquire();
+        try {
+            return signature.sign();
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Verifies a stream against a signature
+     * @param input stream to verify, read to the end
+     * @param expected signature bytes
+     * @return true if the signature matches
+     * @throws GeneralSecurityException if verification can't be performed
+     * @throws IOException on read failure
+     */
+    public boolean verify(InputStream input, byte[] expected) throws GeneralSecurityException, IOException {
+        signature.initVerify(publicKey);
+        update(input);
+        acquire();
+        try {
+            return signature.verify(expected);
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Signs a file and writes its signature file
+     * @param path file to sign
+     * @throws GeneralSecurityException if signing fails
+     * @throws IOException on read or write failure
+     */
+    public void signFile(Path path) throws GeneralSecurityException, IOException {
+        byte[] signed;
+        try (InputStream in = Files.newInputStream(path)) {
+            signed = sign(in);
+        }
+        Files.write(signaturePath(path), Base64.getEncoder().encode(signed),
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Verifies a file against its signature file
+     * @param path file to verify, its signature file has to exist
+     * @return true if the signature matches
+     * @throws GeneralSecurityException if verification can't be performed
+     * @throws IOException on read failure
+     */
+    public boolean verifyFile(Path path) throws GeneralSecurityException, IOException {
+        boolean result = false;
+        String encoded = new String(Files.readAllBytes(signaturePath(path)), StandardCharsets.US_ASCII).trim();
+        byte[] expected = null;
+        try {
+            expected = Base64.getDecoder().decode(encoded);
+        } catch (IllegalArgumentException ex) {
+            // not a signature file, can't match
+        }
+        if (null != expected) {
+            try (InputStream in = Files.newInputStream(path)) {
+                result = verify(in, expected);
+            }
+        }
+        return result;
+    }
+
+    private void update(InputStream input) throws GeneralSecurityException, IOException {
+        int read;
+        while ((read = input.read(buffer)) != -1) {
+            signature.update(buffer, 0, read);
+        }
+    }
+
+    private void acquire() throws IOException {
+        if (null != permits) {
+            try {
+                permits.acquire();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the signature");
+            }
+        }
+    }
+
+    private void release() {
+        if (null != permits) {
+            permits.release();
+        }
+    }
+
+}
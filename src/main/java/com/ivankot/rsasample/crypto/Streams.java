@@ -0,0 +1,218 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Ivan.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.ivankot.rsasample.crypto;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Small stream helpers shared by the crypto classes
+ * @author Ivan
+ */
+public final class Streams {
+
+    /**
+     * Default buffer size for stream copies
+     */
+    public static final int BUFFER_SIZE = 64 * 1024;
+
+    private Streams() {
+    }
+
+    /**
+     * Copies everything from input to output, neither is closed
+     * @param input stream to read from
+     * @param output stream to write to
+     * @return number of bytes copied
+     * @throws IOException on read/write failure
+     */
+    public static long copy(InputStream input, OutputStream output) throws IOException {
+        return copy(input, output, BUFFER_SIZE);
+    }
+
+    /**
+     * Copies everything from input to output with a buffer of the given size,
+     * neither is closed
+     * @param input stream to read from
+     * @param output stream to write to
+     * @param bufferSize size of the copy buffer
+     * @return number of bytes copied
+     * @throws IOException on read/write failure
+     */
+    public static long copy(InputStream input, OutputStream output, int bufferSize) throws IOException {
+        byte[] buffer = new byte[bufferSize];
+        long total = 0;
+        int read;
+        while ((read = input.read(buffer)) != -1) {
+            output.write(buffer, 0, read);
+            total += read;
+        }
+        return total;
+    }
+
+    /**
+     * Moves a finished temporary file over the target, atomically where the
+     * file system allows it
+     * @param source temporary file
+     * @param target final path, replaced if it exists
+     * @throws IOException on failure
+     */
+    public static void replace(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Reads until the buffer is full or the stream ends
+     * @param input stream to read from
+     * @param buffer buffer to fill
+     * @return number of bytes read
+     * @throws IOException on read failure
+     */
+    public static int readFully(InputStream input, byte[] buffer) throws IOException {
+        int total = 0;
+        int read;
+        while (total < buffer.length && (read = input.read(buffer, total, buffer.length - total)) != -1) {
+            total += read;
+        }
+        return total;
+    }
+
+    /**
+     * Input stream that ends after a fixed number of bytes
+     */
+    public static class BoundedInputStream extends FilterInputStream {
+
+        private long remaining;
+
+        /**
+         * Creates a stream limited to length bytes
+         * @param in underlying stream
+         * @param length number of bytes to read at most
+         */
+        public BoundedInputStream(InputStream in, long length) {
+            super(in);
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = -1;
+            if (remaining > 0) {
+                b = in.read();
+                remaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = -1;
+            if (remaining > 0) {
+                read = in.read(b, off, (int) Math.min(len, remaining));
+                if (read > 0) {
+                    remaining -= read;
+                }
+            }
+            return read;
+        }
+
+    }
+
+    /**
+     * Output stream that counts bytes written through it, closing it leaves
+     * the underlying stream open
+     */
+    public static class CountingOutputStream extends UnclosableOutputStream {
+
+        private long count = 0;
+
+        /**
+         * Creates a counting stream
+         * @param out underlying stream
+         */
+        public CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        /**
+         * Returns number of bytes written so far
+         * @return byte count
+         */
+        public long getCount() {
+            return count;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+    }
+
+    /**
+     * Output stream that only flushes the underlying stream on close
+     */
+    public static class UnclosableOutputStream extends FilterOutputStream {
+
+        /**
+         * Creates a stream that leaves the underlying one open
+         * @param out underlying stream
+         */
+        public UnclosableOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+
+    }
+
+}
@@ -0,0 +1,175 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Ivan.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.ivankot.rsasample.metrics;
+
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Thread-safe histogram with fixed bucket bounds. It serves both the 
+ * Prometheus exposition (cumulative buckets) and percentile estimates, the 
+ * precision of which depends on how fine the bounds are
+ * @author Ivan
+ */
+public class Histogram {
+
+    private static final double[] LATENCY_BOUNDS = {
+        0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60
+    };
+
+    private final double[] bounds;
+    private final LongAdder[] counts;
+    private final LongAdder count = new LongAdder();
+    private final DoubleAdder sum = new DoubleAdder();
+
+    /**
+     * Creates a histogram with the upper bounds given, an overflow bucket
+     * is always added
+     * @param bounds sorted bucket upper bounds
+     */
+    public Histogram(double[] bounds) {
+        this.bounds = bounds.clone();
+        this.counts = new LongAdder[bounds.length + 1];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Creates a histogram suitable for operation latencies in seconds
+     * @return Histogram instance
+     */
+    public static Histogram latency() {
+        return new Histogram(LATENCY_BOUNDS);
+    }
+
+    /**
+     * Creates a histogram with exponentially growing bounds, a factor of 
+     * 1.05 gives percentiles within 5%
+     * @param min first bound
+     * @param max last bound
+     * @param factor growth factor between bounds
+     * @return Histogram instance
+     */
+    public static Histogram exponential(double min, double max, double factor) {
+        int size = (int) Math.ceil(Math.log(max / min) / Math.log(factor)) + 1;
+        double[] bounds = new double[size];
+        double bound = min;
+        for (int i = 0; i < size; i++) {
+            bounds[i] = bound;
+            bound *= factor;
+        }
+        return new Histogram(bounds);
+    }
+
+    /**
+     * Records a value
+     * @param value value to record
+     */
+    public void observe(double value) {
+        int low = 0;
+        int high = bounds.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (bounds[middle] < value) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        counts[low].increment();
+        count.increment();
+        sum.add(value);
+    }
+
+    /**
+     * Records a duration as seconds
+     * @param nanos duration in nanoseconds
+     */
+    public void observeNanos(long nanos) {
+        observe(nanos / 1e9);
+    }
+
+    /**
+     * Returns the number of values recorded
+     * @return count
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * Returns the sum of the values recorded
+     * @return sum
+     */
+    public double getSum() {
+        return sum.sum();
+    }
+
+    /**
+     * Returns bucket upper bounds, without the overflow bucket
+     * @return bounds
+     */
+    public double[] getBounds() {
+        return bounds.clone();
+    }
+
+    /**
+     * Returns cumulative counts per bucket, the last one is the overflow 
+     * bucket and equals the total count
+     * @return cumulative counts
+     */
+    public long[] getCumulativeCounts() {
+        long[] cumulative = new long[counts.length];
+        long total = 0;
+        for (int i = 0; i < counts.length; i++) {
+            total += counts[i].sum();
+            cumulative[i] = total;
+        }
+        return cumulative;
+    }
+
+    /**
+     * Estimates a percentile as the upper bound of the bucket it falls in
+     * @param quantile quantile between 0 and 1, e.g. 0.99
+     * @return estimated value, the last bound if it falls in the overflow bucket
+     */
+    public double percentile(double quantile) {
+        long[] cumulative = getCumulativeCounts();
+        long total = cumulative[cumulative.length - 1];
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(quantile * total);
+        for (int i = 0; i < bounds.length; i++) {
+            if (cumulative[i] >= rank) {
+                return bounds[i];
+            }
+        }
+        return bounds[bounds.length - 1];
+    }
+
+}
@@ -0,0 +1,283 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Ivan.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.ivankot.rsasample.metrics;
+
+import java.math.BigDecimal;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Registry of the application metrics: counters, histograms and gauges, 
+ * optionally split by a "type" label. Renders them in the Prometheus text
+ * exposition format. Recording does nothing until the metrics are served,
+ * a run without -m doesn't build the registry
+ * @author Ivan
+ */
+public enum Metrics {
+
+    /**
+     * Singleton instance of the registry
+     */
+    INSTANCE;
+
+    public static final String TYPE_ENCRYPT = "encrypt";
+    public static final String TYPE_DECRYPT = "decrypt";
+    public static final String TYPE_GENERATE = "generate";
+    public static final String TYPE_SIGN = "sign";
+    public static final String TYPE_VERIFY = "verify";
+
+    /**
+     * Gauge with the number of tasks waiting or running in a resident mode
+     */
+    public static final String GAUGE_QUEUE_DEPTH = "queue_depth";
+    public static final String GAUGE_QUEUE_DEPTH_HELP = "Files waiting to be processed or in progress";
+
+    /**
+     * Bucket bounds for coalesced batch sizes
+     */
+    public static final double[] BATCH_SIZE_BOUNDS = {1, 2, 4, 8, 16, 32, 64, 128, 256, 512, 1024};
+
+    /**
+     * Bucket bounds for the wait added by coalescing, in seconds
+     */
+    public static final double[] BATCH_WAIT_BOUNDS = {
+        0.000001, 0.000005, 0.00001, 0.000025, 0.00005, 0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.1, 0.25, 1
+    };
+
+    private static final String PREFIX = "rsasample_";
+    private static final String KIND_COUNTER = "counter";
+    private static final String KIND_HISTOGRAM = "histogram";
+    private static final String KIND_GAUGE = "gauge";
+    private static final String NO_LABEL = "";
+    private static final String HELP_KEY_CACHE_HITS = "Keys served from the cache";
+    private static final String HELP_KEY_CACHE_MISSES = "Keys read from disk";
+
+    private final Map<String, Family> families = new ConcurrentSkipListMap<>();
+    private volatile boolean recording = false;
+
+    /**
+     * Turns recording on, called when the metrics start being served
+     */
+    public void enable() {
+        recording = true;
+    }
+
+    /**
+     * Registers gauges derived from other metrics, only needed once the 
+     * metrics are actually served
+     */
+    public void registerDerived() {
+        gauge("key_cache_hit_ratio", "Share of key loads served from the cache", () -> {
+            double hits = counter("key_cache_hits_total", HELP_KEY_CACHE_HITS, null).sum();
+            double misses = counter("key_cache_misses_total", HELP_KEY_CACHE_MISSES, null).sum();
+            return hits + misses > 0
+                    ? hits / (hits + misses)
+                    : 0;
+        });
+    }
+
+    /**
+     * Records a finished operation
+     * @param type operation type, one of TYPE_* constants
+     * @param bytes input bytes processed
+     * @param nanos time spent in the cipher
+     * @param success whether the operation succeeded
+     */
+    public void recordOperation(String type, long bytes, long nanos, boolean success) {
+        if (!recording) {
+            return;
+        }
+        counter("operations_total", "Operations by type", type).increment();
+        if (success) {
+            counter("bytes_processed_total", "Input bytes processed by type", type).add(bytes);
+            histogram("cipher_seconds", "Time spent in the cipher by type", type).observeNanos(nanos);
+        } else {
+            counter("failures_total", "Failed operations by type", type).increment();
+        }
+    }
+
+    /**
+     * Records a key load
+     * @param nanos time it took to load the key
+     * @param cached whether the key came from the cache
+     */
+    public void recordKeyLoad(long nanos, boolean cached) {
+        if (!recording) {
+            return;
+        }
+        histogram("key_load_seconds", "Time to load a key", null).observeNanos(nanos);
+        if (cached) {
+            counter("key_cache_hits_total", HELP_KEY_CACHE_HITS, null).increment();
+        } else {
+            counter("key_cache_misses_total", HELP_KEY_CACHE_MISSES, null).increment();
+        }
+    }
+
+    /**
+     * Returns a counter, creating it on first use
+     * @param name metric name without the application prefix
+     * @param help description of the metric
+     * @param type value of the type label, null for none
+     * @return counter
+     */
+    public LongAdder counter(String name, String help, String type) {
+        return (LongAdder) family(name, help, KIND_COUNTER).get(type);
+    }
+
+    /**
+     * Returns a latency histogram, creating it on first use
+     * @param name metric name without the application prefix
+     * @param help description of the metric
+     * @param type value of the type label, null for none
+     * @return histogram
+     */
+    public Histogram histogram(String name, String help, String type) {
+        return (Histogram) family(name, help, KIND_HISTOGRAM).get(type);
+    }
+
+    /**
+     * Registers a histogram kept by its owner, replacing any previous one
+     * @param name metric name without the application prefix
+     * @param help description of the metric
+     * @param type value of the type label, null for none
+     * @param histogram histogram exposed from now on
+     */
+    public void register(String name, String help, String type, Histogram histogram) {
+        family(name, help, KIND_HISTOGRAM).metrics.put(null == type ? NO_LABEL : type, histogram);
+    }
+
+    /**
+     * Registers a gauge read at scrape time, replacing any previous one
+     * @param name metric name without the application prefix
+     * @param help description of the metric
+     * @param supplier supplier of the current value
+     */
+    public void gauge(String name, String help, DoubleSupplier supplier) {
+        family(name, help, KIND_GAUGE).metrics.put(NO_LABEL, supplier);
+    }
+
+    /**
+     * Renders all metrics in the Prometheus text format
+     * @return exposition text
+     */
+    public String scrape() {
+        StringBuilder text = new StringBuilder();
+        for (Family family : families.values()) {
+            String name = PREFIX + family.name;
+            text.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+            text.append("# TYPE ").append(name).append(' ').append(family.kind).append('\n');
+            for (Map.Entry<String, Object> item : family.metrics.entrySet()) {
+                String type = item.getKey();
+                Object metric = item.getValue();
+                if (metric instanceof LongAdder) {
+                    sample(text, name, type, null, ((LongAdder) metric).sum());
+                } else if (metric instanceof DoubleSupplier) {
+                    sample(text, name, type, null, ((DoubleSupplier) metric).getAsDouble());
+                } else {
+                    Histogram histogram = (Histogram) metric;
+                    double[] bounds = histogram.getBounds();
+                    long[] cumulative = histogram.getCumulativeCounts();
+                    for (int i = 0; i < bounds.length; i++) {
+                        sample(text, name + "_bucket", type, format(bounds[i]), cumulative[i]);
+                    }
+                    sample(text, name + "_bucket", type, "+Inf", cumulative[bounds.length]);
+                    sample(text, name + "_sum", type, null, histogram.getSum());
+                    sample(text, name + "_count", type, null, cumulative[bounds.length]);
+                }
+            }
+        }
+        return text.toString();
+    }
+
+    private Family family(String name, String help, String kind) {
+        // plain get/putIfAbsent rather than lambdas keeps the one-shot CLI
+        // path free of the invokedynamic bootstrap cost
+        Family family = families.get(name);
+        if (null == family) {
+            Family created = new Family(name, help, kind);
+            family = families.putIfAbsent(name, created);
+            if (null == family) {
+                family = created;
+            }
+        }
+        return family;
+    }
+
+    private static void sample(StringBuilder text, String name, String type, String le, double value) {
+        text.append(name);
+        if (!type.isEmpty() || null != le) {
+            text.append('{');
+            if (!type.isEmpty()) {
+                text.append("type=\"").append(type).append('"');
+            }
+            if (null != le) {
+                text.append(type.isEmpty() ? "" : ",").append("le=\"").append(le).append('"');
+            }
+            text.append('}');
+        }
+        text.append(' ').append(format(value)).append('\n');
+    }
+
+    private static String format(double value) {
+        return value == Math.rint(value) && !Double.isInfinite(value)
+                ? String.valueOf((long) value)
+                : BigDecimal.valueOf(value).toPlainString();
+    }
+
+    private static class Family {
+
+        private final String name;
+        private final String help;
+        private final String kind;
+        private final Map<String, Object> metrics = new ConcurrentHashMap<>();
+
+        Family(String name, String help, String kind) {
+            this.name = name;
+            this.help = help;
+            this.kind = kind;
+        }
+
+        Object get(String type) {
+            String label = null == type ? NO_LABEL : type;
+            Object metric = metrics.get(label);
+            if (null == metric) {
+                Object created = KIND_HISTOGRAM.equals(kind)
+                        ? Histogram.latency()
+                        : new LongAdder();
+                metric = metrics.putIfAbsent(label, created);
+                if (null == metric) {
+                    metric = created;
+                }
+            }
+            return metric;
+        }
+
+    }
+
+}
@@ -0,0 +1,281 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Ivan.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.ivankot.rsasample.runtime;
+
+import com.ivankot.rsasample.crypto.Coalescer;
+import com.ivankot.rsasample.crypto.Compression;
+import com.ivankot.rsasample.crypto.Digests;
+import com.ivankot.rsasample.crypto.Merkle;
+import com.ivankot.rsasample.crypto.Provider.Cipher.Builder;
+import com.ivankot.rsasample.crypto.Streams;
+import com.ivankot.rsasample.metrics.Metrics;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Batch processes every file of an input directory into the same relative 
+ * path of an output directory using a pool of workers. In incremental mode 
+ * it keeps an Index in the output directory and skips inputs that haven't 
+ * changed since the last run: size and modification time are checked first,
+ * content is only hashed when the modification time differs. With a 
+ * Coalescer set, small files are batched on warm ciphers of the key instead
+ * of going through a builder each
+ * @author Ivan
+ */
+public class Batch {
+
+    /**
+     * Largest file sent through the coalescer, bigger ones use a builder
+     */
+    public static final long COALESCED_MAX_SIZE = 64 * 1024;
+
+    private final Supplier<Builder> builders;
+    private final String key;
+    private final boolean incremental;
+    private final Execution execution;
+
+    private final AtomicInteger processed = new AtomicInteger();
+    private final AtomicInteger skipped = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicInteger queued = new AtomicInteger();
+
+    private Index index = null;
+    private Coalescer coalescer = null;
+    private byte[] coalescedKey = null;
+
+    /**
+     * Creates a batch
+     * @param builders supplies builders configured for the action, input and
+     * output are set per file
+     * @param key fingerprint of the key and mode used, an index entry only 
+     * matches if it was produced with the same one
+     * @param incremental whether to skip unchanged inputs
+     * @param execution how files are processed at the same time
+     */
+    public Batch(Supplier<Builder> builders, String key, boolean incremental, Execution execution) {
+        this.builders = builders;
+        this.key = key;
+        this.incremental = incremental;
+        this.execution = execution;
+    }
+
+    /**
+     * Sends small files through a coalescer. Only for plain encryption or 
+     * decryption: without compression, integrity tags or resume, compressed 
+     * inputs still go through a builder
+     * @param coalescer coalescer set up for the action, closed by the caller
+     * @param key encoded key the files are processed with
+     * @return this batch
+     */
+    public Batch coalesce(Coalescer coalescer, byte[] key) {
+        this.coalescer = coalescer;
+        this.coalescedKey = key;
+        return this;
+    }
+
+    /**
+     * Processes the input directory
+     * @param inputDir directory to read files from
+     * @param outputDir directory to write results to, created if missing
+     * @return true if no file failed
+     */
+    public boolean run(Path inputDir, Path outputDir) {
+        boolean result = false;
+        ExecutorService pool = execution.newExecutor();
+        Metrics.INSTANCE.gauge(Metrics.GAUGE_QUEUE_DEPTH, Metrics.GAUGE_QUEUE_DEPTH_HELP, queued::get);
+        try {
+            Files.createDirectories(outputDir);
+            Path indexPath = outputDir.resolve(Index.INDEX_NAME);
+            if (incremental) {
+                index = new Index(indexPath).load();
+            }
+
+            List<Path> files;
+            try (Stream<Path> walk = Files.walk(inputDir)) {
+                files = walk.filter(Files::isRegularFile)
+                        .filter(file -> !file.startsWith(outputDir))
+                        .filter(file -> !file.getFileName().toString().equals(Index.INDEX_NAME))
+                        .filter(file -> !file.getFileName().toString().endsWith(Merkle.EXTENSION))
+                        .collect(Collectors.toList());
+            }
+
+            List<String> names = new ArrayList<>();
+            List<Future<?>> tasks = new ArrayList<>();
+            for (Path file : files) {
+                Path relative = inputDir.relativize(file);
+                String name = relative.toString().replace(file.getFileSystem().getSeparator(), "/");
+                Path target = outputDir.resolve(relative);
+                BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                Index.Entry entry = incremental ? index.get(name) : null;
+                names.add(name);
+
+                if (null != entry && isCurrent(entry, attributes, outputDir)
+                        && entry.getModified() == attributes.lastModifiedTime().toMillis()) {
+                    skipped.incrementAndGet();
+                } else {
+                    queued.incrementAndGet();
+                    tasks.add(pool.submit(execution.bounded(() -> {
+                        try {
+                            process(file, target, name, attributes, entry, outputDir);
+                        } finally {
+                            queued.decrementAndGet();
+                        }
+                    })));
+                }
+            }
+
+            for (Future<?> task : tasks) {
+                task.get();
+                // a re-calibration may change the number of workers during the run
+                execution.resize(pool);
+            }
+
+            if (incremental) {
+                index.retain(names);
+                index.save();
+            }
+            result = failed.get() == 0;
+        } catch (IOException | ExecutionException ex) {
+            Logger.getLogger(Batch.class.getName()).log(Level.SEVERE, null, ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            pool.shutdownNow();
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of files processed by the last run
+     * @return processed files
+     */
+    public int getProcessed() {
+        return processed.get();
+    }
+
+    /**
+     * Returns the number of unchanged files skipped by the last run
+     * @return skipped files
+     */
+    public int getSkipped() {
+        return skipped.get();
+    }
+
+    /**
+     * Returns the number of files that failed in the last run
+     * @return failed files
+     */
+    public int getFailed() {
+        return failed.get();
+    }
+
+    private void process(Path file, Path target, String name, BasicFileAttributes attributes, Index.Entry entry, Path outputDir) {
+        try {
+            String hash = null;
+            if (incremental) {
+                hash = Digests.hash(file);
+                if (null != entry && isCurrent(entry, attributes, outputDir) && entry.getHash().equals(hash)) {
+                    // touched but not changed, only the modification time is refreshed
+                    index.put(name, new Index.Entry(attributes.size(), attributes.lastModifiedTime().toMillis(),
+                            hash, key, entry.getOutput()));
+                    skipped.incrementAndGet();
+                    return;
+                }
+            }
+
+            Files.createDirectories(target.getParent());
+            long started = System.nanoTime();
+            boolean done = isCoalesced(file, attributes)
+                    ? coalesce(file, target)
+                    : builders.get()
+                            .background(false)
+                            .input(file.toString())
+                            .output(target.toString())
+                            .doFinal();
+
+            if (done) {
+                Tuning.INSTANCE.record(attributes.size(), System.nanoTime() - started);
+                processed.incrementAndGet();
+                if (incremental) {
+                    index.put(name, new Index.Entry(attributes.size(), attributes.lastModifiedTime().toMillis(),
+                            hash, key, outputDir.relativize(target).toString()));
+                }
+            } else {
+                failed.incrementAndGet();
+            }
+        } catch (IOException | NoSuchAlgorithmException ex) {
+            Logger.getLogger(Batch.class.getName()).log(Level.SEVERE, null, ex);
+            failed.incrementAndGet();
+        }
+    }
+
+    private boolean isCoalesced(Path file, BasicFileAttributes attributes) throws IOException {
+        return null != coalescer
+                && attributes.size() <= COALESCED_MAX_SIZE
+                && !Compression.isCompressed(file);
+    }
+
+    private boolean coalesce(Path file, Path target) throws IOException {
+        boolean result = false;
+        try {
+            byte[] output = coalescer.submit(coalescedKey, Files.readAllBytes(file)).get();
+            Path temporary = target.resolveSibling(target.getFileName() + ".tmp");
+            try {
+                Files.write(temporary, output);
+                Streams.replace(temporary, target);
+                result = true;
+            } finally {
+                Files.deleteIfExists(temporary);
+            }
+        } catch (ExecutionException ex) {
+            Logger.getLogger(Batch.class.getName()).log(Level.SEVERE, null, ex.getCause());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        return result;
+    }
+
+    private boolean isCurrent(Index.Entry entry, BasicFileAttributes attributes, Path outputDir) {
+        return entry.getSize() == attributes.size()
+                && entry.getKey().equals(key)
+                && Files.exists(outputDir.resolve(entry.getOutput()));
+    }
+
+}
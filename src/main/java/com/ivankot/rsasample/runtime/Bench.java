@@ -0,0 +1,264 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Ivan.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.ivankot.rsasample.runtime;
+
+import com.ivankot.rsasample.crypto.BlockOutputStream;
+import com.ivankot.rsasample.crypto.Coalescer;
+import com.ivankot.rsasample.crypto.KeyPair;
+import com.ivankot.rsasample.crypto.Provider;
+import com.ivankot.rsasample.crypto.Provider.Cipher;
+import com.ivankot.rsasample.crypto.Streams;
+import com.ivankot.rsasample.metrics.Histogram;
+import com.ivankot.rsasample.metrics.Metrics;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Load generator for qualifying hardware and JVM flags: encrypts and 
+ * decrypts synthetic payloads with a throwaway key pair from several threads
+ * for a fixed time and reports throughput and latency percentiles. Every
+ * operation goes the same way a file does through the Builder: key restore,
+ * cipher init and block processing, unless requests are coalesced into 
+ * batches per key
+ * @author Ivan
+ */
+public class Bench {
+
+    /**
+     * Payload sizes used when none are given
+     */
+    public static final int[] DEFAULT_SIZES = {1024, 64 * 1024, 1024 * 1024};
+
+    /**
+     * Measured time per payload size and operation when none is given
+     */
+    public static final int DEFAULT_DURATION_SECONDS = 10;
+
+    private static final String MSG_ENVIRONMENT = "%s %s, %d cpus, flags %s";
+    private static final String MSG_SETUP = "%d threads, %ds per run after %.1fs warmup";
+    private static final String MSG_HEADER = String.format("%-8s %10s %10s %12s %10s %10s %10s %10s",
+            "op", "size", "ops", "ops/s", "MB/s", "p50 ms", "p99 ms", "p999 ms");
+    private static final String MSG_ROW = "%-8s %10d %10d %12.1f %10.2f %10.3f %10.3f %10.3f";
+    private static final String MSG_COALESCING = "coalescing: window %dus, max batch %d";
+    private static final String MSG_BATCHES = "%20sbatches %d, mean size %.1f, p99 size %.0f, wait p50 %.3f ms, p99 %.3f ms";
+    private static final String MSG_FAILURES = "%d operations failed";
+
+    // 1 microsecond to 60 seconds within 5%
+    private static final double LATENCY_MIN = 1e-6;
+    private static final double LATENCY_MAX = 60;
+    private static final double LATENCY_FACTOR = 1.05;
+    private static final int WARMUP_DIVISOR = 5;
+
+    private final int[] sizes;
+    private final int threads;
+    private final long durationNanos;
+    private final long warmupNanos;
+
+    private long windowMicros = 0;
+    private int maxBatch = 0;
+
+    /**
+     * Creates a benchmark
+     * @param sizes payload sizes in bytes
+     * @param threads number of concurrent threads
+     * @param durationSeconds measured time per payload size and operation,
+     * a fifth of it is spent on warmup beforehand
+     */
+    public Bench(int[] sizes, int threads, int durationSeconds) {
+        this.sizes = sizes.clone();
+        this.threads = threads;
+        this.durationNanos = TimeUnit.SECONDS.toNanos(durationSeconds);
+        this.warmupNanos = durationNanos / WARMUP_DIVISOR;
+    }
+
+    /**
+     * Sends every operation through a Coalescer instead of the Builder path,
+     * batch statistics are printed under every row. Batches can't get larger
+     * than the number of threads, as each thread waits for its result
+     * @param windowMicros longest time a request waits for its batch to fill
+     * @param maxBatch number of requests that makes a batch go out at once
+     * @return this benchmark
+     */
+    public Bench coalesce(long windowMicros, int maxBatch) {
+        this.windowMicros = windowMicros;
+        this.maxBatch = maxBatch;
+        return this;
+    }
+
+    /**
+     * Runs encryption and decryption for every payload size and prints a 
+     * row per run
+     * @param out stream to print the report to
+     * @return true if every operation succeeded
+     */
+    public boolean run(PrintStream out) {
+        boolean result = false;
+        KeyPair keyPair = Provider.INSTANCE.getKeychain().generateKeyPair();
+
+        if (null != keyPair) {
+            byte[] privateKey = keyPair.getPrivateKey().getEncoded();
+            byte[] publicKey = keyPair.getPublicKey().getEncoded();
+            Random random = new Random();
+            long failures = 0;
+
+            out.println(String.format(MSG_ENVIRONMENT, System.getProperty("java.vm.name"), System.getProperty("java.vm.version"),
+                    Runtime.getRuntime().availableProcessors(), ManagementFactory.getRuntimeMXBean().getInputArguments()));
+            out.println(String.format(MSG_SETUP, threads, TimeUnit.NANOSECONDS.toSeconds(durationNanos),
+                    warmupNanos / 1e9));
+            if (maxBatch > 0) {
+                out.println(String.format(MSG_COALESCING, windowMicros, maxBatch));
+            }
+            out.println(MSG_HEADER);
+
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            try {
+                for (int size : sizes) {
+                    byte[] payload = new byte[size];
+                    random.nextBytes(payload);
+                    ByteArrayOutputStream ciphered = new ByteArrayOutputStream();
+                    apply(Cipher.ENCRYPTOR, privateKey, payload, ciphered);
+
+                    failures += measure(executor, Cipher.ENCRYPTOR, privateKey, payload, size, out);
+                    failures += measure(executor, Cipher.DECRYPTOR, publicKey, ciphered.toByteArray(), size, out);
+                }
+                result = failures == 0;
+            } catch (GeneralSecurityException | IOException | InterruptedException | ExecutionException ex) {
+                Logger.getLogger(Bench.class.getName()).log(Level.SEVERE, null, ex);
+            } finally {
+                executor.shutdownNow();
+            }
+
+            if (failures > 0) {
+                out.println(String.format(MSG_FAILURES, failures));
+            }
+        }
+
+        return result;
+    }
+
+    private long measure(ExecutorService executor, Cipher cipher, byte[] key, byte[] payload, int size, PrintStream out)
+            throws InterruptedException, ExecutionException {
+        Coalescer coalescer = (maxBatch > 0)
+                ? new Coalescer(cipher, windowMicros, maxBatch, Runtime.getRuntime().availableProcessors())
+                : null;
+        try {
+            return measure(executor, coalescer, cipher, key, payload, size, out);
+        } finally {
+            if (null != coalescer) {
+                coalescer.close();
+            }
+        }
+    }
+
+    private long measure(ExecutorService executor, Coalescer coalescer, Cipher cipher, byte[] key, byte[] payload, int size,
+            PrintStream out) throws InterruptedException, ExecutionException {
+        Histogram latency = Histogram.exponential(LATENCY_MIN, LATENCY_MAX, LATENCY_FACTOR);
+        String type = (Cipher.ENCRYPTOR == cipher)
+                ? Metrics.TYPE_ENCRYPT
+                : Metrics.TYPE_DECRYPT;
+        long measureFrom = System.nanoTime() + warmupNanos;
+        long measureUntil = measureFrom + durationNanos;
+
+        List<Future<Long>> tasks = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            tasks.add(executor.submit(() -> {
+                ByteArrayOutputStream sink = new ByteArrayOutputStream(payload.length + payload.length / 8);
+                long failed = 0;
+                long now = System.nanoTime();
+                while (now < measureUntil) {
+                    sink.reset();
+                    boolean success = true;
+                    try {
+                        if (null != coalescer) {
+                            coalescer.submit(key, payload).get();
+                        } else {
+                            apply(cipher, key, payload, sink);
+                        }
+                    } catch (GeneralSecurityException | IOException | ExecutionException ex) {
+                        success = false;
+                    }
+                    long finished = System.nanoTime();
+                    if (now >= measureFrom) {
+                        if (success) {
+                            latency.observeNanos(finished - now);
+                        } else {
+                            failed++;
+                        }
+                        if (null == coalescer) {
+                            // the coalescer records its own operations
+                            Metrics.INSTANCE.recordOperation(type, size, finished - now, success);
+                        }
+                    }
+                    now = finished;
+                }
+                return failed;
+            }));
+        }
+
+        long failed = 0;
+        for (Future<Long> task : tasks) {
+            failed += task.get();
+        }
+
+        double seconds = durationNanos / 1e9;
+        long ops = latency.getCount();
+        out.println(String.format(MSG_ROW, type, size, ops, ops / seconds,
+                ops * (double) size / seconds / (1024 * 1024), latency.percentile(0.5) * 1000,
+                latency.percentile(0.99) * 1000, latency.percentile(0.999) * 1000));
+        if (null != coalescer) {
+            Histogram batches = coalescer.getBatchSizes();
+            Histogram waits = coalescer.getWaits();
+            out.println(String.format(MSG_BATCHES, "", batches.getCount(),
+                    batches.getSum() / Math.max(1, batches.getCount()), batches.percentile(0.99),
+                    waits.percentile(0.5) * 1000, waits.percentile(0.99) * 1000));
+        }
+        return failed;
+    }
+
+    private void apply(Cipher cipher, byte[] key, byte[] payload, OutputStream sink) throws GeneralSecurityException, IOException {
+        Key restored = cipher.loadKey(key);
+        try (OutputStream blocks = new BlockOutputStream(cipher.init(restored), cipher.blockSize(restored), sink)) {
+            Streams.copy(new ByteArrayInputStream(payload), blocks);
+        }
+    }
+
+}
@@ -24,6 +24,7 @@
 
 package com.ivankot.rsasample.runtime;
 
+import com.ivankot.rsasample.crypto.Coalescer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -116,21 +117,198 @@ public enum Cli {
     public static final String CMD_VERBOSE_LONG = "verbose";
     public static final String CMD_VERBOSE_DESC = "Be verbose about what's going on";
 
-    private static final String ERR_DEFINE_ACTION = "Please define action: encode, decode, generate";
+    /**
+     * Command that tells the application to compress input before encryption
+     * and inflate it after decryption
+     */
+    public static final String CMD_COMPRESS = "z";
+    public static final String CMD_COMPRESS_LONG = "compress";
+    public static final String CMD_COMPRESS_DESC = "Compress input before encryption, compressed files are detected and inflated on decryption";
+
+    /**
+     * Command that tells the application to process input in resumable chunks
+     */
+    public static final String CMD_RESUME = "r";
+    public static final String CMD_RESUME_LONG = "resume";
+    public static final String CMD_RESUME_DESC = "Process input in chunks with a checkpoint journal, rerun to resume an interrupted job";
+
+    /**
+     * Command that tells the application to skip unchanged files when
+     * processing a directory
+     */
+    public static final String CMD_INCREMENTAL = "i";
+    public static final String CMD_INCREMENTAL_LONG = "incremental";
+    public static final String CMD_INCREMENTAL_DESC = "When processing a directory, skip files unchanged since the last run";
+
+    /**
+     * Command that tells the application to watch the input directory and 
+     * process files as they arrive
+     */
+    public static final String CMD_WATCH = "w";
+    public static final String CMD_WATCH_LONG = "watch";
+    public static final String CMD_WATCH_DESC = "Watch the input directory and process new files into the output directory until stopped";
+
+    /**
+     * Command that tells the application to pack a directory into a single
+     * encrypted archive
+     */
+    public static final String CMD_ARCHIVE = "a";
+    public static final String CMD_ARCHIVE_LONG = "archive";
+    public static final String CMD_ARCHIVE_DESC = "Pack a directory into a single encrypted archive using private key";
+
+    /**
+     * Command that tells the application to extract an encrypted archive
+     */
+    public static final String CMD_EXTRACT = "x";
+    public static final String CMD_EXTRACT_LONG = "extract";
+    public static final String CMD_EXTRACT_DESC = "Extract an encrypted archive into the output directory using public key";
+
+    /**
+     * Command that tells the application to extract a single archive entry
+     */
+    public static final String CMD_ENTRY = "n";
+    public static final String CMD_ENTRY_LONG = "entry";
+    public static final String CMD_ENTRY_DESC = "Extract only the named archive entry to the output";
+
+    /**
+     * Command that tells the application to serve metrics over HTTP
+     */
+    public static final String CMD_METRICS = "m";
+    public static final String CMD_METRICS_LONG = "metrics";
+    public static final String CMD_METRICS_DESC = "Serve Prometheus metrics at http://127.0.0.1:<port>/metrics while running, 0 picks a free port";
+
+    /**
+     * Command that tells the application to benchmark encryption and 
+     * decryption with a throwaway key pair
+     */
+    public static final String CMD_BENCH = "B";
+    public static final String CMD_BENCH_LONG = "bench";
+    public static final String CMD_BENCH_DESC = "Benchmark encryption/decryption with a throwaway key pair and print throughput and latency";
+
+    /**
+     * Command that sets payload sizes for the benchmark
+     */
+    public static final String CMD_SIZES = "s";
+    public static final String CMD_SIZES_LONG = "sizes";
+    public static final String CMD_SIZES_DESC = "Comma separated bench payload sizes, k and m suffixes allowed, defaults to 1k,64k,1m";
+
+    /**
+     * Command that sets number of threads for the benchmark
+     */
+    public static final String CMD_THREADS = "t";
+    public static final String CMD_THREADS_LONG = "threads";
+    public static final String CMD_THREADS_DESC = "Number of bench threads, defaults to the number of processors";
+
+    /**
+     * Command that sets measured time per benchmark run
+     */
+    public static final String CMD_DURATION = "u";
+    public static final String CMD_DURATION_LONG = "duration";
+    public static final String CMD_DURATION_DESC = "Seconds measured per bench payload size and operation, defaults to 10";
+
+    /**
+     * Command that tells the application to coalesce small requests into 
+     * batches per key
+     */
+    public static final String CMD_COALESCE = "Q";
+    public static final String CMD_COALESCE_LONG = "coalesce";
+    public static final String CMD_COALESCE_DESC = "Batch small files of a directory (up to 64 KiB) or bench requests on a warm cipher of the key";
+
+    /**
+     * Command that sets how long a coalesced request may wait for its batch
+     */
+    public static final String CMD_WINDOW = "W";
+    public static final String CMD_WINDOW_LONG = "window";
+    public static final String CMD_WINDOW_DESC = "Microseconds a coalesced request may wait for its batch to fill, defaults to 200";
+
+    /**
+     * Command that sets the size of a full coalesced batch
+     */
+    public static final String CMD_MAX_BATCH = "M";
+    public static final String CMD_MAX_BATCH_LONG = "max-batch";
+    public static final String CMD_MAX_BATCH_DESC = "Number of coalesced requests that makes a batch go out at once, defaults to 64";
+
+    /**
+     * Command that tells the application to write integrity tags next to 
+     * the encrypted output
+     */
+    public static final String CMD_INTEGRITY = "I";
+    public static final String CMD_INTEGRITY_LONG = "integrity";
+    public static final String CMD_INTEGRITY_DESC = "Write a Merkle tree of chunk digests next to the encrypted output (<output>.merkle)";
+
+    /**
+     * Command that tells the application to verify integrity tags of an 
+     * encrypted file
+     */
+    public static final String CMD_VERIFY = "V";
+    public static final String CMD_VERIFY_LONG = "verify";
+    public static final String CMD_VERIFY_DESC = "Verify an encrypted file against its integrity tags using public key, without decrypting it";
+
+    /**
+     * Command that tells the application to decrypt only a range of bytes
+     */
+    public static final String CMD_RANGE = "R";
+    public static final String CMD_RANGE_LONG = "range";
+    public static final String CMD_RANGE_DESC = "Decrypt only plaintext bytes <start>-<end> (inclusive, end optional), checking the chunks read against integrity tags";
+
+    /**
+     * Command that tells the application to sign a file or a directory
+     */
+    public static final String CMD_SIGN = "S";
+    public static final String CMD_SIGN_LONG = "sign";
+    public static final String CMD_SIGN_DESC = "Sign a file or every file of a directory (SHA256withRSA) using private key, writes <file>.sig";
+
+    /**
+     * Command that tells the application to verify signatures of a file or a 
+     * directory
+     */
+    public static final String CMD_VERIFY_SIGNATURE = "C";
+    public static final String CMD_VERIFY_SIGNATURE_LONG = "verify-signature";
+    public static final String CMD_VERIFY_SIGNATURE_DESC = "Verify <file>.sig signatures of a file or every file of a directory using public key";
+
+    /**
+     * Command that tells the application to use a virtual thread per file
+     */
+    public static final String CMD_VIRTUAL = "L";
+    public static final String CMD_VIRTUAL_LONG = "virtual-threads";
+    public static final String CMD_VIRTUAL_DESC = "Process directories, watched files and signatures with a virtual thread per file (Java 21+), cipher work stays bounded by the number of cores";
+
+    /**
+     * Command that tells the application to calibrate tuning for the host
+     */
+    public static final String CMD_CALIBRATE = "c";
+    public static final String CMD_CALIBRATE_LONG = "calibrate";
+    public static final String CMD_CALIBRATE_DESC = "Probe the host for workers, chunk size and IO buffer and save them to ~/.rsasample/tuning.properties";
+
+    /**
+     * Command that tells the application to use the tuning profile
+     */
+    public static final String CMD_TUNE = "T";
+    public static final String CMD_TUNE_LONG = "tune";
+    public static final String CMD_TUNE_DESC = "Use the tuning profile of this host, calibrating first if there is none, and re-calibrate when throughput drops";
+
+    private static final String ERR_DEFINE_ACTION = "Please define action: encode, decode, generate, archive, extract, verify, sign, verify-signature, bench, calibrate";
     private static final String ERR_DEFINE_KEY = "Please specify the key to use";
     private static final String ERR_DEFINE_KEY_SOURCE = "Please specify valid key and input";
     private static final String ERR_OUTPUT_NOT_WRITABLE = "Please make sure output path is writable";
+    private static final String ERR_RESUME_OUTPUT = "Resumable mode requires an output file and can't be combined with compression";
+    private static final String ERR_DIRECTORY_OUTPUT = "Directory input requires an output directory";
+    private static final String ERR_WATCH_DIRECTORY = "Watch mode requires an input directory different from the output one";
+    private static final String ERR_ARCHIVE_OUTPUT = "Please specify the output for the archive";
+    private static final String ERR_METRICS_PORT = "Please specify a valid metrics port";
+    private static final String ERR_BENCH_OPTIONS = "Please specify positive bench sizes, threads, duration, window and max batch";
+    private static final String ERR_COALESCE = "Coalescing requires a directory input without watch, compression, integrity tags or resume, and a positive window and max batch";
+    private static final String ERR_REPORT_INPUT = "Please write the report outside of the input";
+    private static final String ERR_INTEGRITY_OUTPUT = "Integrity tags require encryption to an output file";
+    private static final String ERR_RANGE = "Range requires a decrypted file and a valid <start>-<end>";
+    private static final String ERR_VIRTUAL_UNAVAILABLE = "Virtual threads require Java 21 or newer";
     private static final String ERR_GEN_PATH_NOT_WRITABLE = "Current directory is not writable - cannot generate the keys";
 
-    private final Options options = new Options();
+    private Options options = null;
 
     private CommandLine cmd = null;
     private String lastError = null;
 
-    private Cli() {
-        populateOptions();
-    }
-
     /**
      * Initialize the Cli by passing and parsing cmd args
      * @param args cmd args
@@ -140,7 +318,7 @@ public enum Cli {
         boolean result = false;
         CommandLineParser cmp = new DefaultParser();
         try {
-            cmd = cmp.parse(options, args);
+            cmd = cmp.parse(getOptions(), args);
             result = true;
         } catch (ParseException ex) {
             setError(ex.getMessage());
@@ -158,6 +336,10 @@ public enum Cli {
         if (null != cmd) {
             if (cmd.hasOption(CMD_HELP)) {
                 result = true;
+            } else if (cmd.hasOption(CMD_METRICS) && !isPort(cmd.getOptionValue(CMD_METRICS))) {
+                setError(ERR_METRICS_PORT);
+            } else if (cmd.hasOption(CMD_VIRTUAL) && !Execution.isVirtualAvailable()) {
+                setError(ERR_VIRTUAL_UNAVAILABLE);
             } else if (cmd.hasOption(CMD_ENCODE) || cmd.hasOption(CMD_DECODE) || cmd.hasOption(CMD_GENERATE)) {
                 if (cmd.hasOption(CMD_ENCODE) || cmd.hasOption(CMD_DECODE)) {
 
@@ -171,7 +353,26 @@ public enum Cli {
                         Path key = Paths.get(keyPath);
 
                         if (Files.exists(key) && Files.exists(source)) {
-                            if (cmd.hasOption(CMD_OUTPUT)) {
+                            if (cmd.hasOption(CMD_INTEGRITY) && (!cmd.hasOption(CMD_ENCODE) || !cmd.hasOption(CMD_OUTPUT))) {
+                                setError(ERR_INTEGRITY_OUTPUT);
+                            } else if (cmd.hasOption(CMD_RANGE) && (!cmd.hasOption(CMD_DECODE) || null == getRange()
+                                    || cmd.hasOption(CMD_RESUME) || !Files.isRegularFile(source))) {
+                                setError(ERR_RANGE);
+                            } else if (cmd.hasOption(CMD_RESUME) && (!cmd.hasOption(CMD_OUTPUT)
+                                    || (cmd.hasOption(CMD_ENCODE) && cmd.hasOption(CMD_COMPRESS)))) {
+                                setError(ERR_RESUME_OUTPUT);
+                            } else if (Files.isDirectory(source) && (!cmd.hasOption(CMD_OUTPUT)
+                                    || Files.isRegularFile(Paths.get(cmd.getOptionValue(CMD_OUTPUT))))) {
+                                setError(ERR_DIRECTORY_OUTPUT);
+                            } else if (cmd.hasOption(CMD_WATCH) && (!Files.isDirectory(source)
+                                    || source.toAbsolutePath().normalize().equals(Paths.get(cmd.getOptionValue(CMD_OUTPUT)).toAbsolutePath().normalize()))) {
+                                setError(ERR_WATCH_DIRECTORY);
+                            } else if (cmd.hasOption(CMD_COALESCE) && (!Files.isDirectory(source) || cmd.hasOption(CMD_WATCH)
+                                    || cmd.hasOption(CMD_INTEGRITY) || cmd.hasOption(CMD_RESUME)
+                                    || (cmd.hasOption(CMD_ENCODE) && cmd.hasOption(CMD_COMPRESS))
+                                    || getPositive(CMD_WINDOW, 1) <= 0 || getPositive(CMD_MAX_BATCH, 1) <= 0)) {
+                                setError(ERR_COALESCE);
+                            } else if (cmd.hasOption(CMD_OUTPUT)) {
                                 String outputPath = cmd.getOptionValue(CMD_OUTPUT);
                                 Path output = Paths.get(outputPath).toAbsolutePath();
 
@@ -200,6 +401,27 @@ public enum Cli {
                         setError(ERR_GEN_PATH_NOT_WRITABLE);
                     }
                 }
+            } else if (cmd.hasOption(CMD_ARCHIVE) || cmd.hasOption(CMD_EXTRACT)) {
+                result = validateArchive();
+            } else if (cmd.hasOption(CMD_VERIFY)) {
+                if (!cmd.hasOption(CMD_KEY)) {
+                    setError(ERR_DEFINE_KEY);
+                } else if (Files.exists(Paths.get(cmd.getOptionValue(CMD_KEY))) && Files.isRegularFile(Paths.get(cmd.getOptionValue(CMD_VERIFY)))) {
+                    result = true;
+                } else {
+                    setError(ERR_DEFINE_KEY_SOURCE);
+                }
+            } else if (cmd.hasOption(CMD_SIGN) || cmd.hasOption(CMD_VERIFY_SIGNATURE)) {
+                result = validateSignature();
+            } else if (cmd.hasOption(CMD_CALIBRATE)) {
+                result = true;
+            } else if (cmd.hasOption(CMD_BENCH)) {
+                if (null != getSizes() && getPositive(CMD_THREADS, 1) > 0 && getPositive(CMD_DURATION, 1) > 0
+                        && getPositive(CMD_WINDOW, 1) > 0 && getPositive(CMD_MAX_BATCH, 1) > 0) {
+                    result = true;
+                } else {
+                    setError(ERR_BENCH_OPTIONS);
+                }
             } else {
                 setError(ERR_DEFINE_ACTION);
             }
@@ -221,6 +443,20 @@ public enum Cli {
                 action = CMD_DECODE;
             } else if (cmd.hasOption(CMD_GENERATE)) {
                 action = CMD_GENERATE;
+            } else if (cmd.hasOption(CMD_ARCHIVE)) {
+                action = CMD_ARCHIVE;
+            } else if (cmd.hasOption(CMD_EXTRACT)) {
+                action = CMD_EXTRACT;
+            } else if (cmd.hasOption(CMD_VERIFY)) {
+                action = CMD_VERIFY;
+            } else if (cmd.hasOption(CMD_SIGN)) {
+                action = CMD_SIGN;
+            } else if (cmd.hasOption(CMD_VERIFY_SIGNATURE)) {
+                action = CMD_VERIFY_SIGNATURE;
+            } else if (cmd.hasOption(CMD_CALIBRATE)) {
+                action = CMD_CALIBRATE;
+            } else if (cmd.hasOption(CMD_BENCH)) {
+                action = CMD_BENCH;
             } else if (cmd.hasOption(CMD_HELP)) {
                 action = CMD_HELP;
             }
@@ -238,6 +474,18 @@ public enum Cli {
         actionOptions.put(CMD_KEY, cmd.getOptionValue(CMD_KEY));
         actionOptions.put(CMD_BACKGROUND, cmd.hasOption(CMD_BACKGROUND));
         actionOptions.put(CMD_VERBOSE, cmd.hasOption(CMD_VERBOSE));
+        actionOptions.put(CMD_COMPRESS, cmd.hasOption(CMD_COMPRESS));
+        actionOptions.put(CMD_RESUME, cmd.hasOption(CMD_RESUME));
+        actionOptions.put(CMD_INCREMENTAL, cmd.hasOption(CMD_INCREMENTAL));
+        actionOptions.put(CMD_WATCH, cmd.hasOption(CMD_WATCH));
+        actionOptions.put(CMD_METRICS, cmd.getOptionValue(CMD_METRICS));
+        actionOptions.put(CMD_INTEGRITY, cmd.hasOption(CMD_INTEGRITY));
+        actionOptions.put(CMD_VIRTUAL, cmd.hasOption(CMD_VIRTUAL));
+        actionOptions.put(CMD_TUNE, cmd.hasOption(CMD_TUNE));
+        actionOptions.put(CMD_RANGE, cmd.hasOption(CMD_RANGE) ? getRange() : null);
+        actionOptions.put(CMD_COALESCE, cmd.hasOption(CMD_COALESCE));
+        actionOptions.put(CMD_WINDOW, getPositive(CMD_WINDOW, (int) Coalescer.DEFAULT_WINDOW_MICROS));
+        actionOptions.put(CMD_MAX_BATCH, getPositive(CMD_MAX_BATCH, Coalescer.DEFAULT_MAX_BATCH));
 
         String outputValue = cmd.hasOption(CMD_OUTPUT)
                 ? cmd.getOptionValue(CMD_OUTPUT)
@@ -253,6 +501,33 @@ public enum Cli {
 
             case CMD_DECODE:
                 actionOptions.put(CMD_DECODE, cmd.getOptionValue(CMD_DECODE));
+                break;
+
+            case CMD_ARCHIVE:
+                actionOptions.put(CMD_ARCHIVE, cmd.getOptionValue(CMD_ARCHIVE));
+                break;
+
+            case CMD_EXTRACT:
+                actionOptions.put(CMD_EXTRACT, cmd.getOptionValue(CMD_EXTRACT));
+                actionOptions.put(CMD_ENTRY, cmd.getOptionValue(CMD_ENTRY));
+                break;
+
+            case CMD_VERIFY:
+                actionOptions.put(CMD_VERIFY, cmd.getOptionValue(CMD_VERIFY));
+                break;
+
+            case CMD_SIGN:
+                actionOptions.put(CMD_SIGN, cmd.getOptionValue(CMD_SIGN));
+                break;
+
+            case CMD_VERIFY_SIGNATURE:
+                actionOptions.put(CMD_VERIFY_SIGNATURE, cmd.getOptionValue(CMD_VERIFY_SIGNATURE));
+                break;
+
+            case CMD_BENCH:
+                actionOptions.put(CMD_SIZES, getSizes());
+                actionOptions.put(CMD_THREADS, getPositive(CMD_THREADS, Runtime.getRuntime().availableProcessors()));
+                actionOptions.put(CMD_DURATION, getPositive(CMD_DURATION, Bench.DEFAULT_DURATION_SECONDS));
 
         }
 
@@ -264,7 +539,7 @@ public enum Cli {
      */
     public void printHelp() {
         HelpFormatter formatter = new HelpFormatter();
-        formatter.printHelp(APPLICATION, options);
+        formatter.printHelp(APPLICATION, getOptions());
     }
 
     /**
@@ -274,6 +549,145 @@ public enum Cli {
         System.out.println(lastError);
     }
 
+    private boolean validateArchive() {
+        boolean result = false;
+        String sourcePath = cmd.hasOption(CMD_ARCHIVE)
+                ? cmd.getOptionValue(CMD_ARCHIVE)
+                : cmd.getOptionValue(CMD_EXTRACT);
+
+        if (!cmd.hasOption(CMD_KEY)) {
+            setError(ERR_DEFINE_KEY);
+        } else if (!Files.exists(Paths.get(cmd.getOptionValue(CMD_KEY))) || !Files.exists(Paths.get(sourcePath))) {
+            setError(ERR_DEFINE_KEY_SOURCE);
+        } else if (!cmd.hasOption(CMD_OUTPUT)) {
+            // a single entry may go to stdout, anything else needs a path
+            if (cmd.hasOption(CMD_EXTRACT) && cmd.hasOption(CMD_ENTRY)) {
+                result = true;
+            } else {
+                setError(ERR_ARCHIVE_OUTPUT);
+            }
+        } else {
+            Path output = Paths.get(cmd.getOptionValue(CMD_OUTPUT)).toAbsolutePath();
+            if (Files.exists(output) || Files.isWritable(output.getParent())) {
+                result = true;
+            } else {
+                setError(ERR_OUTPUT_NOT_WRITABLE);
+            }
+        }
+
+        return result;
+    }
+
+    private boolean validateSignature() {
+        boolean result = false;
+        String sourcePath = cmd.hasOption(CMD_SIGN)
+                ? cmd.getOptionValue(CMD_SIGN)
+                : cmd.getOptionValue(CMD_VERIFY_SIGNATURE);
+
+        if (!cmd.hasOption(CMD_KEY)) {
+            setError(ERR_DEFINE_KEY);
+        } else if (!Files.exists(Paths.get(cmd.getOptionValue(CMD_KEY))) || !Files.exists(Paths.get(sourcePath))) {
+            setError(ERR_DEFINE_KEY_SOURCE);
+        } else if (cmd.hasOption(CMD_OUTPUT)) {
+            // the report goes to the output
+            Path output = Paths.get(cmd.getOptionValue(CMD_OUTPUT)).toAbsolutePath().normalize();
+            if (output.startsWith(Paths.get(sourcePath).toAbsolutePath().normalize())) {
+                // it would be signed or verified along with the files
+                setError(ERR_REPORT_INPUT);
+            } else if (Files.exists(output)
+                    ? !Files.isDirectory(output) && Files.isWritable(output)
+                    : Files.isWritable(output.getParent())) {
+                result = true;
+            } else {
+                setError(ERR_OUTPUT_NOT_WRITABLE);
+            }
+        } else {
+            result = true;
+        }
+
+        return result;
+    }
+
+    private boolean isPort(String value) {
+        try {
+            int port = Integer.parseInt(value);
+            return port >= 0 && port <= 65535;
+        } catch (NumberFormatException ex) {
+            return false;
+        }
+    }
+
+    private int[] getSizes() {
+        if (!cmd.hasOption(CMD_SIZES)) {
+            return Bench.DEFAULT_SIZES.clone();
+        }
+        String[] values = cmd.getOptionValue(CMD_SIZES).split(",");
+        int[] sizes = new int[values.length];
+        for (int i = 0; i < values.length; i++) {
+            String value = values[i].trim().toLowerCase();
+            int multiplier = 1;
+            if (value.endsWith("k")) {
+                multiplier = 1024;
+            } else if (value.endsWith("m")) {
+                multiplier = 1024 * 1024;
+            }
+            if (multiplier > 1) {
+                value = value.substring(0, value.length() - 1);
+            }
+            try {
+                sizes[i] = Math.multiplyExact(Integer.parseInt(value), multiplier);
+            } catch (NumberFormatException | ArithmeticException ex) {
+                return null;
+            }
+            if (sizes[i] <= 0) {
+                return null;
+            }
+        }
+        return sizes;
+    }
+
+    /**
+     * Parses the range option into start and end (exclusive) offsets
+     * @return range or null if it's not valid
+     */
+    private long[] getRange() {
+        String[] bounds = cmd.getOptionValue(CMD_RANGE).split("-", -1);
+        long[] range = null;
+        if (bounds.length == 2) {
+            try {
+                long start = Long.parseLong(bounds[0].trim());
+                long end = bounds[1].trim().isEmpty()
+                        ? Long.MAX_VALUE
+                        : Long.parseLong(bounds[1].trim()) + 1;
+                if (start >= 0 && end > start) {
+                    range = new long[]{start, end};
+                }
+            } catch (NumberFormatException ex) {
+                range = null;
+            }
+        }
+        return range;
+    }
+
+    private int getPositive(String option, int defaultValue) {
+        if (!cmd.hasOption(option)) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(cmd.getOptionValue(option));
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    private Options getOptions() {
+        if (null == options) {
+            options = new Options();
+            populateOptions();
+        }
+        return options;
+    }
+
     private void populateOptions() {
         options.addOption(CMD_KEY, CMD_KEY_LONG, true, CMD_KEY_DESC);
         options.addOption(CMD_ENCODE, CMD_ENCODE_LONG, true, CMD_ENCODE_DESC);
@@ -282,6 +696,29 @@ public enum Cli {
         options.addOption(CMD_HELP, CMD_HELP_LONG, false, CMD_HELP_DESC);
         options.addOption(CMD_GENERATE, CMD_GENERATE_LONG, false, CMD_GENERATE_DESC);
         options.addOption(CMD_BACKGROUND, CMD_BACKGROUND_LONG, false, CMD_BACKGROUND_DESC);
+        options.addOption(CMD_COMPRESS, CMD_COMPRESS_LONG, false, CMD_COMPRESS_DESC);
+        options.addOption(CMD_RESUME, CMD_RESUME_LONG, false, CMD_RESUME_DESC);
+        options.addOption(CMD_INCREMENTAL, CMD_INCREMENTAL_LONG, false, CMD_INCREMENTAL_DESC);
+        options.addOption(CMD_WATCH, CMD_WATCH_LONG, false, CMD_WATCH_DESC);
+        options.addOption(CMD_ARCHIVE, CMD_ARCHIVE_LONG, true, CMD_ARCHIVE_DESC);
+        options.addOption(CMD_EXTRACT, CMD_EXTRACT_LONG, true, CMD_EXTRACT_DESC);
+        options.addOption(CMD_ENTRY, CMD_ENTRY_LONG, true, CMD_ENTRY_DESC);
+        options.addOption(CMD_METRICS, CMD_METRICS_LONG, true, CMD_METRICS_DESC);
+        options.addOption(CMD_INTEGRITY, CMD_INTEGRITY_LONG, false, CMD_INTEGRITY_DESC);
+        options.addOption(CMD_VERIFY, CMD_VERIFY_LONG, true, CMD_VERIFY_DESC);
+        options.addOption(CMD_RANGE, CMD_RANGE_LONG, true, CMD_RANGE_DESC);
+        options.addOption(CMD_SIGN, CMD_SIGN_LONG, true, CMD_SIGN_DESC);
+        options.addOption(CMD_VERIFY_SIGNATURE, CMD_VERIFY_SIGNATURE_LONG, true, CMD_VERIFY_SIGNATURE_DESC);
+        options.addOption(CMD_VIRTUAL, CMD_VIRTUAL_LONG, false, CMD_VIRTUAL_DESC);
+        options.addOption(CMD_CALIBRATE, CMD_CALIBRATE_LONG, false, CMD_CALIBRATE_DESC);
+        options.addOption(CMD_TUNE, CMD_TUNE_LONG, false, CMD_TUNE_DESC);
+        options.addOption(CMD_BENCH, CMD_BENCH_LONG, false, CMD_BENCH_DESC);
+        options.addOption(CMD_SIZES, CMD_SIZES_LONG, true, CMD_SIZES_DESC);
+        options.addOption(CMD_THREADS, CMD_THREADS_LONG, true, CMD_THREADS_DESC);
+        options.addOption(CMD_DURATION, CMD_DURATION_LONG, true, CMD_DURATION_DESC);
+        options.addOption(CMD_COALESCE, CMD_COALESCE_LONG, false, CMD_COALESCE_DESC);
+        options.addOption(CMD_WINDOW, CMD_WINDOW_LONG, true, CMD_WINDOW_DESC);
+        options.addOption(CMD_MAX_BATCH, CMD_MAX_BATCH_LONG, true, CMD_MAX_BATCH_DESC);
     }
 
     private void setError(String message) {
@@ -0,0 +1,182 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Ivan.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.ivankot.rsasample.runtime;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Defines how the directory, watch and signature modes run their tasks: 
+ * either on a fixed pool of platform threads, or with a virtual thread per
+ * task (Java 21+). Virtual threads block on slow storage for free, so only
+ * the cipher work is bounded, by a permit per core, and the number of files
+ * open at the same time is capped. The application is built for Java 8, 
+ * so virtual threads are looked up at runtime
+ * @author Ivan
+ */
+public class Execution {
+
+    /**
+     * Number of files processed at the same time with virtual threads
+     */
+    public static final int MAX_OPEN_FILES = 1024;
+
+    private static final String VIRTUAL_FACTORY = "newVirtualThreadPerTaskExecutor";
+
+    private final int workers;
+    private final boolean virtual;
+    private final Semaphore cpuPermits;
+    private final Semaphore filePermits;
+
+    private Execution(int workers, boolean virtual, Semaphore cpuPermits) {
+        this.workers = workers;
+        this.virtual = virtual;
+        this.cpuPermits = cpuPermits;
+        this.filePermits = virtual ? new Semaphore(workers) : null;
+    }
+
+    /**
+     * Creates a fixed pool execution
+     * @param workers number of platform threads
+     * @return Execution instance
+     */
+    public static Execution platform(int workers) {
+        return new Execution(workers, false, null);
+    }
+
+    /**
+     * Creates a virtual thread execution
+     * @param cpus number of tasks allowed to run the cipher at the same time
+     * @return Execution instance
+     */
+    public static Execution virtual(int cpus) {
+        return new Execution(MAX_OPEN_FILES, true, new Semaphore(cpus));
+    }
+
+    /**
+     * Tells whether the running JVM supports virtual threads
+     * @return true on Java 21 and newer
+     */
+    public static boolean isVirtualAvailable() {
+        return null != virtualFactory();
+    }
+
+    /**
+     * Tells whether tasks run on virtual threads
+     * @return true for a virtual thread execution
+     */
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    /**
+     * Returns the number of tasks that may be in progress at the same time
+     * @return number of workers
+     */
+    public int getWorkers() {
+        return workers;
+    }
+
+    /**
+     * Returns permits bounding cipher work, to be passed to builders
+     * @return semaphore or null when the pool itself bounds the work
+     */
+    public Semaphore getCpuPermits() {
+        return cpuPermits;
+    }
+
+    /**
+     * Creates an executor for a run, shut it down when done
+     * @return ExecutorService instance
+     */
+    public ExecutorService newExecutor() {
+        if (virtual) {
+            try {
+                return (ExecutorService) virtualFactory().invoke(null);
+            } catch (ReflectiveOperationException ex) {
+                Logger.getLogger(Execution.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+        return Executors.newFixedThreadPool(workers);
+    }
+
+    /**
+     * Follows a re-calibration during a run: a platform pool is resized to
+     * the workers tuning picks now. Virtual thread executions keep their
+     * cpu permits
+     * @param pool executor created by newExecutor
+     */
+    public void resize(ExecutorService pool) {
+        if (Tuning.INSTANCE.isEnabled() && !virtual && pool instanceof ThreadPoolExecutor) {
+            ThreadPoolExecutor executor = (ThreadPoolExecutor) pool;
+            int tuned = Tuning.INSTANCE.getWorkers();
+            if (tuned > executor.getMaximumPoolSize()) {
+                executor.setMaximumPoolSize(tuned);
+                executor.setCorePoolSize(tuned);
+            } else if (tuned < executor.getCorePoolSize()) {
+                executor.setCorePoolSize(tuned);
+                executor.setMaximumPoolSize(tuned);
+            }
+        }
+    }
+
+    /**
+     * Wraps a task so that only getWorkers() of them run at the same time 
+     * with virtual threads, platform pools are bounded already
+     * @param task task to wrap
+     * @return bounded task
+     */
+    public Callable<Void> bounded(Runnable task) {
+        return () -> {
+            if (null != filePermits) {
+                filePermits.acquire();
+            }
+            try {
+                task.run();
+            } finally {
+                if (null != filePermits) {
+                    filePermits.release();
+                }
+            }
+            return null;
+        };
+    }
+
+    private static Method virtualFactory() {
+        try {
+            return Executors.class.getMethod(VIRTUAL_FACTORY);
+        } catch (NoSuchMethodException ex) {
+            return null;
+        }
+    }
+
+}
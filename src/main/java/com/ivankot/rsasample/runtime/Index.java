@@ -0,0 +1,180 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Ivan.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.ivankot.rsasample.runtime;
+
+import com.ivankot.rsasample.crypto.Streams;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * On-disk index of a batch run, maps every input (relative to the input
+ * directory) to its size, modification time, content hash, key used and 
+ * output produced. Incremental runs use it to skip unchanged files
+ * @author Ivan
+ */
+public class Index {
+
+    /**
+     * Name of the index file, kept in the output directory
+     */
+    public static final String INDEX_NAME = ".rsasample-index";
+
+    private static final String SEPARATOR = "\t";
+
+    private final Path path;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * Creates an index stored in the file given
+     * @param path index file
+     */
+    public Index(Path path) {
+        this.path = path;
+    }
+
+    /**
+     * Loads the index from disk, a missing file means an empty index and
+     * malformed lines are dropped
+     * @return Index instance
+     * @throws IOException on read failure
+     */
+    public Index load() throws IOException {
+        entries.clear();
+        if (Files.exists(path)) {
+            for (String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+                String[] fields = line.split(SEPARATOR, 6);
+                if (fields.length == 6) {
+                    try {
+                        entries.put(fields[5], new Entry(Long.parseLong(fields[0]), Long.parseLong(fields[1]),
+                                fields[2], fields[3], fields[4]));
+                    } catch (NumberFormatException ex) {
+                        // malformed entry, the file will simply be processed again
+                    }
+                }
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Writes the index next to its location and renames it into place
+     * @throws IOException on write failure
+     */
+    public void save() throws IOException {
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, Entry> item : entries.entrySet()) {
+                Entry entry = item.getValue();
+                writer.write(String.join(SEPARATOR, String.valueOf(entry.getSize()), String.valueOf(entry.getModified()),
+                        entry.getHash(), entry.getKey(), entry.getOutput(), item.getKey()));
+                writer.newLine();
+            }
+        }
+        Streams.replace(temp, path);
+    }
+
+    /**
+     * Returns the entry for an input
+     * @param name input path relative to the input directory
+     * @return Entry or null if the input is not indexed
+     */
+    public Entry get(String name) {
+        return entries.get(name);
+    }
+
+    /**
+     * Records an entry for an input
+     * @param name input path relative to the input directory
+     * @param entry entry to record
+     */
+    public void put(String name, Entry entry) {
+        entries.put(name, entry);
+    }
+
+    /**
+     * Drops entries of inputs that no longer exist
+     * @param names inputs seen by the current run
+     */
+    public void retain(Collection<String> names) {
+        entries.keySet().retainAll(names);
+    }
+
+    /**
+     * Single index entry
+     */
+    public static class Entry {
+
+        private final long size;
+        private final long modified;
+        private final String hash;
+        private final String key;
+        private final String output;
+
+        /**
+         * Creates an entry
+         * @param size input size
+         * @param modified input modification time, millis
+         * @param hash hex content hash of the input
+         * @param key fingerprint of the key and mode used
+         * @param output output path relative to the output directory
+         */
+        public Entry(long size, long modified, String hash, String key, String output) {
+            this.size = size;
+            this.modified = modified;
+            this.hash = hash;
+            this.key = key;
+            this.output = output;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getModified() {
+            return modified;
+        }
+
+        public String getHash() {
+            return hash;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public String getOutput() {
+            return output;
+        }
+
+    }
+
+}
@@ -24,10 +24,25 @@
 
 package com.ivankot.rsasample.runtime;
 
+import com.ivankot.rsasample.crypto.Archive;
+import com.ivankot.rsasample.crypto.Coalescer;
 import com.ivankot.rsasample.crypto.Generator;
+import com.ivankot.rsasample.crypto.Merkle;
 import com.ivankot.rsasample.crypto.Provider;
+import com.ivankot.rsasample.crypto.Provider.Cipher;
 import com.ivankot.rsasample.crypto.Provider.Cipher.Builder;
+import com.ivankot.rsasample.crypto.Provider.Keychain;
+import com.ivankot.rsasample.crypto.Streams;
+import com.ivankot.rsasample.metrics.MetricsServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * Manager orchestrates work of the application by identifying the action 
@@ -42,11 +57,34 @@ public class Manager {
     public static final String MSG_DECRYPTION_SUCCESS = "Decryption completed successfully";
     public static final String MSG_DECRYPTION_FAILURE = "Decryption was not completed";
     public static final String MSG_GENERATION_SUCCESS = "Generted keys in the current directory";
+    public static final String MSG_COMPRESSION_RATIO = "Compression ratio: %.2f";
+    public static final String MSG_BATCH_SUMMARY = "Processed %d, skipped %d, failed %d";
+    public static final String MSG_ARCHIVE_SUCCESS = "Packed %d entries into the archive";
+    public static final String MSG_ARCHIVE_FAILURE = "Archive was not created";
+    public static final String MSG_EXTRACT_SUCCESS = "Extraction completed successfully";
+    public static final String MSG_EXTRACT_FAILURE = "Extraction was not completed";
+    public static final String MSG_VERIFY_SUCCESS = "Verified %d chunks, the file is intact";
+    public static final String MSG_VERIFY_FAILURE = "Integrity check failed, corrupted chunks: %s";
+    public static final String MSG_VERIFY_MISMATCH = "Integrity tags don't match the key or the size of the file";
+    public static final String MSG_VERIFY_MISSING = "No valid integrity tags found at %s";
+    public static final String MSG_SIGN_SUMMARY = "Signed %d, failed %d";
+    public static final String MSG_VERIFY_SIGNATURE_SUMMARY = "Valid %d, invalid %d, missing %d, failed %d";
+    public static final String MSG_REPORT_FAILURE = "Could not write the report";
+    public static final String MSG_CALIBRATION_SUCCESS = "Calibrated %s, saved to %s";
+    public static final String MSG_CALIBRATION_FAILURE = "Calibration was not completed";
+    public static final String MSG_TUNING = "Tuned %s";
+    public static final String MSG_BENCH_FAILURE = "Benchmark was not completed";
+    public static final String MSG_WATCHING = "Watching %s, writing to %s";
+    public static final String MSG_METRICS = "Serving metrics at http://127.0.0.1:%d%s";
 
     private final String[] args;
 
     private final Cli cli = Cli.INSTANCE;
 
+    private Execution execution = null;
+    private boolean tuned = false;
+    private PrintStream status = System.out;
+
     /**
      * Default constructor that accepts an array of command line arguments and
      * processes it internally
@@ -63,26 +101,49 @@ public class Manager {
         if (cli.init(args) && cli.validate()) {
             String action = cli.getAction();
             Map<String, Object> actionOptions = cli.getOptionsForAction(action);
+            status = getStatusStream(action, actionOptions);
             Provider provider = Provider.INSTANCE;
             String message = null;
             boolean result;
+            MetricsServer metricsServer = (null != actionOptions.get(Cli.CMD_METRICS))
+                    ? startMetrics(actionOptions)
+                    : null;
 
             switch (action) {
 
                 case Cli.CMD_ENCODE:
-                    result = configureBuilder(provider.getEncoder().builder(), actionOptions).doFinal();
+                    result = process(provider.getEncoder(), actionOptions);
                     message = (result)
                             ? MSG_ENCRYPTION_SUCCESS
                             : MSG_ENCRYPTION_FAILURE;
                     break;
 
                 case Cli.CMD_DECODE:
-                    result = configureBuilder(provider.getDecoder().builder(), actionOptions).doFinal();
+                    result = process(provider.getDecoder(), actionOptions);
                     message = (result)
                             ? MSG_DECRYPTION_SUCCESS
                             : MSG_DECRYPTION_FAILURE;
                     break;
 
+                case Cli.CMD_ARCHIVE:
+                    int cpus = prepareExecution(actionOptions);
+                    Archive archive = new Archive(Paths.get((String) actionOptions.get(Cli.CMD_OUTPUT)));
+                    byte[] privateKey = provider.getKeychain().readKey(Paths.get((String) actionOptions.get(Cli.CMD_KEY)));
+                    result = (null != privateKey) && archive.pack(Paths.get((String) actionOptions.get(Cli.CMD_ARCHIVE)),
+                            privateKey, (boolean) actionOptions.get(Cli.CMD_COMPRESS), cpus);
+                    message = (result)
+                            ? String.format(MSG_ARCHIVE_SUCCESS, archive.getEntries().size())
+                            : MSG_ARCHIVE_FAILURE;
+                    break;
+
+                case Cli.CMD_EXTRACT:
+                    result = extract(actionOptions);
+                    // a single entry written to stdout is not followed by a message
+                    message = (result)
+                            ? (isEntryToStdout(actionOptions) ? null : MSG_EXTRACT_SUCCESS)
+                            : MSG_EXTRACT_FAILURE;
+                    break;
+
                 case Cli.CMD_GENERATE:
                     Generator generator = new Generator(Provider.INSTANCE);
                     result = generator.generate();
@@ -91,14 +152,62 @@ public class Manager {
                             : generator.getLastError();
                     break;
 
+                case Cli.CMD_VERIFY:
+                    Merkle merkle = new Merkle(Paths.get((String) actionOptions.get(Cli.CMD_VERIFY)));
+                    byte[] publicKey = provider.getKeychain().readKey(Paths.get((String) actionOptions.get(Cli.CMD_KEY)));
+                    if (!merkle.open()) {
+                        result = false;
+                        message = String.format(MSG_VERIFY_MISSING, Merkle.treePath(Paths.get((String) actionOptions.get(Cli.CMD_VERIFY))));
+                    } else {
+                        result = (null != publicKey) && merkle.verify(publicKey, Runtime.getRuntime().availableProcessors());
+                        if (result) {
+                            message = String.format(MSG_VERIFY_SUCCESS, merkle.getChunkCount());
+                        } else {
+                            message = merkle.getCorrupted().isEmpty()
+                                    ? MSG_VERIFY_MISMATCH
+                                    : String.format(MSG_VERIFY_FAILURE, merkle.getCorrupted());
+                        }
+                    }
+                    break;
+
+                case Cli.CMD_SIGN:
+                case Cli.CMD_VERIFY_SIGNATURE:
+                    prepareExecution(actionOptions);
+                    message = runSignatures(Cli.CMD_SIGN.equals(action), actionOptions);
+                    break;
+
+                case Cli.CMD_CALIBRATE:
+                    Tuning tuning = Tuning.INSTANCE;
+                    result = tuning.calibrate(getScratch(actionOptions)) && tuning.save(Tuning.DEFAULT_PROFILE);
+                    message = (result)
+                            ? String.format(MSG_CALIBRATION_SUCCESS, tuning, Tuning.DEFAULT_PROFILE)
+                            : MSG_CALIBRATION_FAILURE;
+                    break;
+
+                case Cli.CMD_BENCH:
+                    Bench bench = new Bench((int[]) actionOptions.get(Cli.CMD_SIZES), (int) actionOptions.get(Cli.CMD_THREADS),
+                            (int) actionOptions.get(Cli.CMD_DURATION));
+                    if ((boolean) actionOptions.get(Cli.CMD_COALESCE)) {
+                        bench.coalesce((int) actionOptions.get(Cli.CMD_WINDOW), (int) actionOptions.get(Cli.CMD_MAX_BATCH));
+                    }
+                    result = bench.run(System.out);
+                    message = (result)
+                            ? null
+                            : MSG_BENCH_FAILURE;
+                    break;
+
                 case Cli.CMD_HELP:
                     cli.printHelp();
                     break;
 
             }
 
+            if (null != metricsServer) {
+                metricsServer.stop();
+            }
+
             if (null != message) 
-                System.out.println(message);
+                status.println(message);
 
         } else {
             cli.printErrors();
@@ -106,18 +215,213 @@ public class Manager {
         }
     }
 
-    private Builder configureBuilder(Builder builder, Map<String, Object> actionOptions) {
+    private PrintStream getStatusStream(String action, Map<String, Object> actionOptions) {
+        // status lines must not end up in the data written to stdout
+        boolean dataToStdout = Cli.DEFAULT_OUTPUT.equals(actionOptions.get(Cli.CMD_OUTPUT))
+                && (Cli.CMD_ENCODE.equals(action) || Cli.CMD_DECODE.equals(action) || Cli.CMD_EXTRACT.equals(action)
+                || Cli.CMD_SIGN.equals(action) || Cli.CMD_VERIFY_SIGNATURE.equals(action));
+        return dataToStdout
+                ? System.err
+                : System.out;
+    }
 
-        Object input = actionOptions.containsKey(Cli.CMD_ENCODE)
-                ? actionOptions.get(Cli.CMD_ENCODE)
-                : actionOptions.get(Cli.CMD_DECODE);
+    private int prepareExecution(Map<String, Object> actionOptions) {
+        // the execution mode is only set up by the actions running many tasks
+        int cpus = prepareTuning(actionOptions);
+        execution = (boolean) actionOptions.get(Cli.CMD_VIRTUAL)
+                ? Execution.virtual(cpus)
+                : Execution.platform(cpus);
+        return cpus;
+    }
+
+    private int prepareTuning(Map<String, Object> actionOptions) {
+        int cpus = Runtime.getRuntime().availableProcessors();
+        if ((boolean) actionOptions.get(Cli.CMD_TUNE)) {
+            Tuning tuning = Tuning.INSTANCE;
+            if (tuning.enable(Tuning.DEFAULT_PROFILE, getScratch(actionOptions))) {
+                status.println(String.format(MSG_TUNING, tuning));
+                cpus = tuning.getWorkers();
+                tuned = true;
+            }
+        }
+        return cpus;
+    }
+
+    private MetricsServer startMetrics(Map<String, Object> actionOptions) {
+        MetricsServer server = new MetricsServer(Integer.parseInt((String) actionOptions.get(Cli.CMD_METRICS)));
+        try {
+            server.start();
+            // stderr keeps output written to stdout clean, the port matters when 0 picked a free one
+            System.err.println(String.format(MSG_METRICS, server.getPort(), MetricsServer.METRICS_PATH));
+        } catch (IOException ex) {
+            Logger.getLogger(Manager.class.getName()).log(Level.SEVERE, null, ex);
+            server = null;
+        }
+        return server;
+    }
+
+    private Builder configureBuilder(Builder builder, Map<String, Object> actionOptions) {
+        long[] range = (long[]) actionOptions.get(Cli.CMD_RANGE);
+        if (null != range) {
+            builder.range(range[0], range[1]);
+        }
+        if (tuned) {
+            builder.chunkSize(Tuning.INSTANCE.getChunkSize())
+                    .bufferSize(Tuning.INSTANCE.getBufferSize());
+        }
 
         return builder
+                .integrity((boolean) actionOptions.get(Cli.CMD_INTEGRITY))
+                .cpuPermits(null != execution ? execution.getCpuPermits() : null)
                 .background((boolean) actionOptions.get(Cli.CMD_BACKGROUND))
                 .verbose((boolean) actionOptions.get(Cli.CMD_VERBOSE))
+                .compress((boolean) actionOptions.get(Cli.CMD_COMPRESS))
+                .resume((boolean) actionOptions.get(Cli.CMD_RESUME))
                 .key((String) actionOptions.get(Cli.CMD_KEY))
-                .input((String) input)
+                .input(getInput(actionOptions))
                 .output((String) actionOptions.get(Cli.CMD_OUTPUT));
     }
 
+    private boolean process(Cipher cipher, Map<String, Object> actionOptions) {
+        boolean result;
+        if ((boolean) actionOptions.get(Cli.CMD_WATCH)) {
+            prepareExecution(actionOptions);
+            result = runWatcher(cipher, actionOptions);
+        } else if (isDirectory(actionOptions)) {
+            prepareExecution(actionOptions);
+            result = runBatch(cipher, actionOptions);
+        } else {
+            // a single file needs no workers, only the tuned sizes
+            prepareTuning(actionOptions);
+            result = runBuilder(cipher, actionOptions);
+        }
+        return result;
+    }
+
+    private boolean runBuilder(Cipher cipher, Map<String, Object> actionOptions) {
+        Builder builder = configureBuilder(cipher.builder(), actionOptions);
+        boolean result = builder.doFinal();
+        if (result && builder.isCompressed() && !(boolean) actionOptions.get(Cli.CMD_BACKGROUND)) {
+            status.println(String.format(MSG_COMPRESSION_RATIO, builder.getCompressionRatio()));
+        }
+        return result;
+    }
+
+    private boolean runBatch(Cipher cipher, Map<String, Object> actionOptions) {
+        Keychain keychain = Provider.INSTANCE.getKeychain();
+        Path inputDir = Paths.get(getInput(actionOptions)).toAbsolutePath().normalize();
+        Path outputDir = Paths.get((String) actionOptions.get(Cli.CMD_OUTPUT)).toAbsolutePath().normalize();
+        byte[] keyBytes = keychain.readKey(Paths.get((String) actionOptions.get(Cli.CMD_KEY)));
+        boolean result = false;
+
+        if (null != keyBytes) {
+            String key = String.join(":", keychain.fingerprint(keyBytes), cipher.name(),
+                    String.valueOf(actionOptions.get(Cli.CMD_COMPRESS)));
+
+            Batch batch = new Batch(() -> configureBuilder(cipher.builder(), actionOptions), key,
+                    (boolean) actionOptions.get(Cli.CMD_INCREMENTAL), execution);
+            if ((boolean) actionOptions.get(Cli.CMD_COALESCE)) {
+                try (Coalescer coalescer = new Coalescer(cipher, (int) actionOptions.get(Cli.CMD_WINDOW),
+                        (int) actionOptions.get(Cli.CMD_MAX_BATCH), Runtime.getRuntime().availableProcessors())) {
+                    result = batch.coalesce(coalescer, keyBytes).run(inputDir, outputDir);
+                }
+            } else {
+                result = batch.run(inputDir, outputDir);
+            }
+            System.out.println(String.format(MSG_BATCH_SUMMARY, batch.getProcessed(), batch.getSkipped(), batch.getFailed()));
+        }
+
+        return result;
+    }
+
+    private boolean runWatcher(Cipher cipher, Map<String, Object> actionOptions) {
+        Path inbox = Paths.get(getInput(actionOptions)).toAbsolutePath().normalize();
+        Path outbox = Paths.get((String) actionOptions.get(Cli.CMD_OUTPUT)).toAbsolutePath().normalize();
+        System.out.println(String.format(MSG_WATCHING, inbox, outbox));
+
+        Watcher watcher = new Watcher(() -> configureBuilder(cipher.builder(), actionOptions), execution);
+        return watcher.run(inbox, outbox);
+    }
+
+    private String runSignatures(boolean signing, Map<String, Object> actionOptions) {
+        Path input = Paths.get((String) actionOptions.get(signing ? Cli.CMD_SIGN : Cli.CMD_VERIFY_SIGNATURE));
+        String output = (String) actionOptions.get(Cli.CMD_OUTPUT);
+        boolean toStdout = Cli.DEFAULT_OUTPUT.equals(output);
+        byte[] key = Provider.INSTANCE.getKeychain().readKey(Paths.get((String) actionOptions.get(Cli.CMD_KEY)));
+        String message = null;
+
+        if (null != key) {
+            SignatureBatch batch = new SignatureBatch(key, signing, execution);
+            try (OutputStream report = toStdout ? new Streams.UnclosableOutputStream(System.out) : Files.newOutputStream(Paths.get(output))) {
+                batch.run(input, report);
+            } catch (IOException ex) {
+                Logger.getLogger(Manager.class.getName()).log(Level.SEVERE, null, ex);
+                message = MSG_REPORT_FAILURE;
+            }
+            // a report written to stdout is not followed by a summary
+            if (null == message && !toStdout) {
+                message = signing
+                        ? String.format(MSG_SIGN_SUMMARY, batch.getCount(SignatureBatch.STATUS_SIGNED),
+                                batch.getCount(SignatureBatch.STATUS_FAILED))
+                        : String.format(MSG_VERIFY_SIGNATURE_SUMMARY, batch.getCount(SignatureBatch.STATUS_VALID),
+                                batch.getCount(SignatureBatch.STATUS_INVALID), batch.getCount(SignatureBatch.STATUS_MISSING),
+                                batch.getCount(SignatureBatch.STATUS_FAILED));
+            }
+        }
+
+        return message;
+    }
+
+    private boolean extract(Map<String, Object> actionOptions) {
+        Archive archive = new Archive(Paths.get((String) actionOptions.get(Cli.CMD_EXTRACT)));
+        byte[] publicKey = Provider.INSTANCE.getKeychain().readKey(Paths.get((String) actionOptions.get(Cli.CMD_KEY)));
+        String entry = (String) actionOptions.get(Cli.CMD_ENTRY);
+        Path output = Paths.get((String) actionOptions.get(Cli.CMD_OUTPUT));
+        boolean result = false;
+
+        if (null != publicKey && archive.open(publicKey)) {
+            if (null == entry) {
+                result = archive.extractAll(publicKey, output);
+            } else if (isEntryToStdout(actionOptions)) {
+                result = archive.extract(publicKey, entry, System.out);
+                System.out.flush();
+            } else {
+                try (OutputStream out = Files.newOutputStream(output)) {
+                    result = archive.extract(publicKey, entry, out);
+                } catch (IOException ex) {
+                    Logger.getLogger(Manager.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            }
+        }
+
+        return result;
+    }
+
+    private boolean isEntryToStdout(Map<String, Object> actionOptions) {
+        return null != actionOptions.get(Cli.CMD_ENTRY) && Cli.DEFAULT_OUTPUT.equals(actionOptions.get(Cli.CMD_OUTPUT));
+    }
+
+    private Path getScratch(Map<String, Object> actionOptions) {
+        // storage is probed where the output goes
+        Path scratch = Paths.get("").toAbsolutePath();
+        String output = (String) actionOptions.get(Cli.CMD_OUTPUT);
+        if (!Cli.DEFAULT_OUTPUT.equals(output)) {
+            Path outputPath = Paths.get(output).toAbsolutePath();
+            scratch = Files.isDirectory(outputPath)
+                    ? outputPath
+                    : outputPath.getParent();
+        }
+        return scratch;
+    }
+
+    private boolean isDirectory(Map<String, Object> actionOptions) {
+        return Files.isDirectory(Paths.get(getInput(actionOptions)));
+    }
+
+    private String getInput(Map<String, Object> actionOptions) {
+        return (String) (actionOptions.containsKey(Cli.CMD_ENCODE)
+                ? actionOptions.get(Cli.CMD_ENCODE)
+                : actionOptions.get(Cli.CMD_DECODE));
+    }
+
 }
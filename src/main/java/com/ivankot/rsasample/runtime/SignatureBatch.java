@@ -0,0 +1,198 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Ivan.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.ivankot.rsasample.runtime;
+
+import com.ivankot.rsasample.crypto.Merkle;
+import com.ivankot.rsasample.crypto.Signer;
+import com.ivankot.rsasample.metrics.Metrics;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Signs or verifies a file or every file of a directory tree with a single
+ * key, in parallel, and writes a tab separated report with a line per file:
+ * status, size and path relative to the input
+ * @author Ivan
+ */
+public class SignatureBatch {
+
+    public static final String STATUS_SIGNED = "signed";
+    public static final String STATUS_VALID = "valid";
+    public static final String STATUS_INVALID = "invalid";
+    public static final String STATUS_MISSING = "missing";
+    public static final String STATUS_FAILED = "failed";
+
+    private static final String SEPARATOR = "\t";
+    private static final String HEADER = String.join(SEPARATOR, "status", "bytes", "path");
+
+    private final byte[] key;
+    private final boolean signing;
+    private final Execution execution;
+    private final Map<String, LongAdder> counts = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a batch
+     * @param key encoded private key for signing or public key for verification
+     * @param signing true to sign, false to verify
+     * @param execution how files are processed at the same time
+     */
+    public SignatureBatch(byte[] key, boolean signing, Execution execution) {
+        this.key = key;
+        this.signing = signing;
+        this.execution = execution;
+    }
+
+    /**
+     * Returns number of files that ended with a status in the last run
+     * @param status one of STATUS_* constants
+     * @return number of files
+     */
+    public long getCount(String status) {
+        LongAdder count = counts.get(status);
+        return (null != count)
+                ? count.sum()
+                : 0;
+    }
+
+    /**
+     * Signs or verifies the input and writes the report
+     * @param input file or directory
+     * @param report stream for the report, not closed
+     * @return true if every file was signed or has a valid signature
+     */
+    public boolean run(Path input, OutputStream report) {
+        boolean result = false;
+        ExecutorService pool = execution.newExecutor();
+        counts.clear();
+
+        try {
+            List<Path> files = list(input);
+            String[] statuses = new String[files.size()];
+            AtomicInteger next = new AtomicInteger();
+
+            // every worker keeps its own signer and takes the next file until none is left
+            List<Future<Void>> tasks = new ArrayList<>();
+            for (int i = 0; i < Math.min(execution.getWorkers(), Math.max(1, files.size())); i++) {
+                tasks.add(pool.submit(() -> {
+                    Signer signer = (signing
+                            ? Signer.forSigning(key)
+                            : Signer.forVerification(key)).permits(execution.getCpuPermits());
+                    int index;
+                    while ((index = next.getAndIncrement()) < files.size()) {
+                        statuses[index] = process(signer, files.get(index));
+                        counts.computeIfAbsent(statuses[index], status -> new LongAdder()).increment();
+                    }
+                    return null;
+                }));
+            }
+            for (Future<Void> task : tasks) {
+                task.get();
+            }
+
+            Writer writer = new BufferedWriter(new OutputStreamWriter(report, StandardCharsets.UTF_8));
+            writer.write(HEADER);
+            writer.write(System.lineSeparator());
+            for (int i = 0; i < statuses.length; i++) {
+                Path file = files.get(i);
+                String name = Files.isDirectory(input)
+                        ? input.relativize(file).toString()
+                        : file.toString();
+                writer.write(String.join(SEPARATOR, statuses[i], String.valueOf(Files.size(file)), name));
+                writer.write(System.lineSeparator());
+            }
+            writer.flush();
+
+            result = getCount(signing ? STATUS_SIGNED : STATUS_VALID) == files.size();
+        } catch (IOException | InterruptedException | ExecutionException ex) {
+            Logger.getLogger(SignatureBatch.class.getName()).log(Level.SEVERE, null, ex);
+        } finally {
+            pool.shutdownNow();
+        }
+
+        return result;
+    }
+
+    private String process(Signer signer, Path file) {
+        String status = STATUS_FAILED;
+        long started = System.nanoTime();
+        try {
+            if (signing) {
+                signer.signFile(file);
+                status = STATUS_SIGNED;
+            } else if (!Files.exists(Signer.signaturePath(file))) {
+                status = STATUS_MISSING;
+            } else {
+                status = signer.verifyFile(file)
+                        ? STATUS_VALID
+                        : STATUS_INVALID;
+            }
+        } catch (GeneralSecurityException | IOException ex) {
+            Logger.getLogger(SignatureBatch.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        Metrics.INSTANCE.recordOperation(signing ? Metrics.TYPE_SIGN : Metrics.TYPE_VERIFY, file.toFile().length(),
+                System.nanoTime() - started, !STATUS_FAILED.equals(status) && !STATUS_MISSING.equals(status));
+        return status;
+    }
+
+    private List<Path> list(Path input) throws IOException {
+        List<Path> files;
+        if (Files.isDirectory(input)) {
+            try (Stream<Path> walk = Files.walk(input)) {
+                files = walk.filter(Files::isRegularFile)
+                        .filter(file -> !file.getFileName().toString().endsWith(Signer.EXTENSION))
+                        .filter(file -> !file.getFileName().toString().endsWith(Merkle.EXTENSION))
+                        .filter(file -> !file.getFileName().toString().equals(Index.INDEX_NAME))
+                        .sorted()
+                        .collect(Collectors.toList());
+            }
+        } else {
+            files = Collections.singletonList(input);
+        }
+        return files;
+    }
+
+}
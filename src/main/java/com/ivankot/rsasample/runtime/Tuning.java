@@ -0,0 +1,493 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Ivan.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.ivankot.rsasample.runtime;
+
+import com.ivankot.rsasample.crypto.BlockOutputStream;
+import com.ivankot.rsasample.crypto.KeyPair;
+import com.ivankot.rsasample.crypto.Provider;
+import com.ivankot.rsasample.crypto.Provider.Cipher;
+import com.ivankot.rsasample.crypto.Streams;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.Key;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Tuning picks the worker count, the resumable chunk size and the IO buffer
+ * size for the current host from short timed probes, and keeps them in a
+ * profile file so the probes only run once per host. While enabled it also
+ * watches the throughput of finished files and, if it drops well below the 
+ * best seen for files of a similar size, drops the profile and re-calibrates
+ * in the background once no file has finished for a while, so the probes 
+ * measure the host rather than the workload
+ * @author Ivan
+ */
+public enum Tuning {
+
+    /**
+     * Singleton instance of the class
+     */
+    INSTANCE;
+
+    /**
+     * Default location of the profile file
+     */
+    public static final Path DEFAULT_PROFILE = Paths.get(System.getProperty("user.home"), ".rsasample", "tuning.properties");
+
+    /**
+     * Share of the best observed throughput below which a re-calibration starts
+     */
+    public static final double DROP_THRESHOLD = 0.5;
+
+    /**
+     * Length of the window throughput is observed over
+     */
+    public static final long WINDOW_SECONDS = 30;
+
+    /**
+     * Time without finished files after which a pending re-calibration runs
+     */
+    public static final long IDLE_MILLIS = 1000;
+
+    private static final String KEY_HOST = "host";
+    private static final String KEY_WORKERS = "workers";
+    private static final String KEY_CHUNK_SIZE = "chunk.size";
+    private static final String KEY_BUFFER_SIZE = "buffer.size";
+    private static final String KEY_CIPHER_RATE = "cipher.rate";
+    private static final String KEY_FSYNC_NANOS = "fsync.nanos";
+    private static final String PROFILE_COMMENT = "rsasample tuning profile, delete to re-calibrate";
+
+    private static final long PROBE_MILLIS = 250;
+    private static final int PROBE_PAYLOAD = 2 * 1024;
+    private static final int PROBE_FSYNCS = 16;
+    private static final int PROBE_FILE_SIZE = 8 * 1024 * 1024;
+    private static final int[] BUFFER_SIZES = {8 * 1024, 16 * 1024, 64 * 1024, 256 * 1024, 1024 * 1024};
+    private static final double GOOD_ENOUGH = 0.95;
+    // a checkpoint may cost at most 1/50 of the time it takes to cipher a chunk
+    private static final int FSYNC_BUDGET = 50;
+    private static final int MIN_CHUNK_SIZE = 64 * 1024;
+    private static final int MAX_CHUNK_SIZE = 64 * 1024 * 1024;
+    private static final int MIN_WINDOW_FILES = 8;
+
+    private volatile boolean enabled = false;
+    // replaced as a whole, readers never see values of two calibrations
+    private volatile Values values = new Values(Runtime.getRuntime().availableProcessors(),
+            Cipher.DEFAULT_CHUNK_SIZE, Streams.BUFFER_SIZE, 0, 0);
+    private volatile long lastRecorded = System.nanoTime();
+
+    private Path profile = null;
+    private Path scratch = null;
+    private final AtomicBoolean recalibrating = new AtomicBoolean();
+    // probes don't run twice at the same time, workers never wait for them
+    private final Object probeLock = new Object();
+
+    // throughput window, guarded by windowLock
+    private final Object windowLock = new Object();
+    private long windowStart = System.nanoTime();
+    private long windowBytes = 0;
+    private long windowFiles = 0;
+    // best rate per power of two of the mean file size in a window
+    private final double[] bestRates = new double[Long.SIZE];
+
+    /**
+     * Returns whether tuned values are in use
+     * @return true once enabled with a profile
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Returns the number of workers to process files with
+     * @return worker count
+     */
+    public int getWorkers() {
+        return values.workers;
+    }
+
+    /**
+     * Returns the chunk size of resumable mode
+     * @return chunk size in bytes
+     */
+    public int getChunkSize() {
+        return values.chunkSize;
+    }
+
+    /**
+     * Returns the size of IO buffers
+     * @return buffer size in bytes
+     */
+    public int getBufferSize() {
+        return values.bufferSize;
+    }
+
+    /**
+     * Loads the profile for this host, calibrating and saving it first if 
+     * there is none, and starts watching throughput
+     * @param profile profile file
+     * @param scratch directory for storage probes, normally where output goes
+     * @return true if tuned values are in use
+     */
+    public boolean enable(Path profile, Path scratch) {
+        this.profile = profile;
+        this.scratch = scratch;
+        enabled = load(profile) || (calibrate(scratch) && save(profile));
+        return enabled;
+    }
+
+    /**
+     * Reads a profile file
+     * @param profile profile file
+     * @return true if the profile exists and was made on this host
+     */
+    public boolean load(Path profile) {
+        boolean result = false;
+        if (Files.isRegularFile(profile)) {
+            Properties properties = new Properties();
+            try (InputStream in = Files.newInputStream(profile)) {
+                properties.load(in);
+                if (host().equals(properties.getProperty(KEY_HOST))) {
+                    Values loaded = new Values(Integer.parseInt(properties.getProperty(KEY_WORKERS)),
+                            Integer.parseInt(properties.getProperty(KEY_CHUNK_SIZE)),
+                            Integer.parseInt(properties.getProperty(KEY_BUFFER_SIZE)),
+                            Double.parseDouble(properties.getProperty(KEY_CIPHER_RATE)),
+                            Long.parseLong(properties.getProperty(KEY_FSYNC_NANOS)));
+                    result = loaded.workers > 0 && loaded.chunkSize > 0 && loaded.bufferSize > 0;
+                    if (result) {
+                        values = loaded;
+                    }
+                }
+            } catch (IOException | RuntimeException ex) {
+                Logger.getLogger(Tuning.class.getName()).log(Level.WARNING, null, ex);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Writes a profile file
+     * @param profile profile file
+     * @return true if written
+     */
+    public boolean save(Path profile) {
+        boolean result = false;
+        Values saved = values;
+        Properties properties = new Properties();
+        properties.setProperty(KEY_HOST, host());
+        properties.setProperty(KEY_WORKERS, String.valueOf(saved.workers));
+        properties.setProperty(KEY_CHUNK_SIZE, String.valueOf(saved.chunkSize));
+        properties.setProperty(KEY_BUFFER_SIZE, String.valueOf(saved.bufferSize));
+        properties.setProperty(KEY_CIPHER_RATE, String.valueOf(saved.cipherRate));
+        properties.setProperty(KEY_FSYNC_NANOS, String.valueOf(saved.fsyncNanos));
+        try {
+            Files.createDirectories(profile.toAbsolutePath().getParent());
+            try (OutputStream out = Files.newOutputStream(profile)) {
+                properties.store(out, PROFILE_COMMENT);
+            }
+            result = true;
+        } catch (IOException ex) {
+            Logger.getLogger(Tuning.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        return result;
+    }
+
+    /**
+     * Runs the probes, takes a few seconds:
+     * workers - the fewest threads that get within 5% of the best cipher throughput,
+     * chunk size - large enough for a checkpoint (fsync) to cost at most 2% of ciphering the chunk,
+     * buffer size - the smallest that gets within 5% of the best copy throughput
+     * @param scratch directory for storage probes, normally where output goes
+     * @return true if every probe ran
+     */
+    public boolean calibrate(Path scratch) {
+        synchronized (probeLock) {
+            return probe(scratch);
+        }
+    }
+
+    private boolean probe(Path scratch) {
+        boolean result = false;
+        KeyPair keyPair = Provider.INSTANCE.getKeychain().generateKeyPair();
+        if (null != keyPair) {
+            try {
+                byte[] key = keyPair.getPrivateKey().getEncoded();
+                int cpus = Runtime.getRuntime().availableProcessors();
+                // sorted, so the first candidate within reach of the best is the fewest threads
+                Set<Integer> counts = new TreeSet<>();
+                for (int count = 1; count < 2 * cpus; count *= 2) {
+                    counts.add(count);
+                }
+                counts.add(cpus);
+                counts.add(2 * cpus);
+                List<Integer> candidates = new ArrayList<>(counts);
+
+                // the first probe only warms up the cipher
+                probeCipher(key, 1);
+                double[] rates = new double[candidates.size()];
+                double best = 0;
+                for (int i = 0; i < rates.length; i++) {
+                    rates[i] = probeCipher(key, candidates.get(i));
+                    best = Math.max(best, rates[i]);
+                }
+                int pickedWorkers = cpus;
+                for (int i = rates.length - 1; i >= 0; i--) {
+                    if (rates[i] >= GOOD_ENOUGH * best) {
+                        pickedWorkers = candidates.get(i);
+                    }
+                }
+                double singleRate = rates[0];
+
+                long pickedFsync = probeFsync(scratch);
+                long chunk = (long) Math.ceil(FSYNC_BUDGET * (pickedFsync / 1e9) * singleRate);
+                int pickedChunk = MIN_CHUNK_SIZE;
+                while (pickedChunk < chunk && pickedChunk < MAX_CHUNK_SIZE) {
+                    pickedChunk *= 2;
+                }
+
+                int pickedBuffer = probeBuffer(scratch);
+                values = new Values(pickedWorkers, pickedChunk, pickedBuffer, singleRate, pickedFsync);
+                result = true;
+            } catch (IOException | InterruptedException | ExecutionException ex) {
+                Logger.getLogger(Tuning.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Records a finished file; when a window of them is clearly slower than
+     * the best window seen for files of a similar size, the profile is 
+     * dropped and the probes run again in the background once the workload
+     * is idle
+     * @param bytes input size
+     * @param nanos time it took
+     */
+    public void record(long bytes, long nanos) {
+        if (!enabled) {
+            return;
+        }
+        long now = System.nanoTime();
+        lastRecorded = now;
+        boolean dropped = false;
+        synchronized (windowLock) {
+            windowBytes += bytes;
+            windowFiles++;
+            long elapsed = now - windowStart;
+            if (elapsed >= TimeUnit.SECONDS.toNanos(WINDOW_SECONDS)) {
+                if (windowFiles >= MIN_WINDOW_FILES) {
+                    // smaller files are slower per byte, only windows of a similar size are compared
+                    int size = Long.SIZE - 1 - Long.numberOfLeadingZeros(Math.max(1, windowBytes / windowFiles));
+                    double rate = windowBytes / (elapsed / 1e9);
+                    dropped = rate < DROP_THRESHOLD * bestRates[size];
+                    if (dropped) {
+                        Arrays.fill(bestRates, 0);
+                    } else {
+                        bestRates[size] = Math.max(bestRates[size], rate);
+                    }
+                }
+                windowStart = now;
+                windowBytes = 0;
+                windowFiles = 0;
+            }
+        }
+        if (dropped && recalibrating.compareAndSet(false, true)) {
+            recalibrate();
+        }
+    }
+
+    @Override
+    public String toString() {
+        Values current = values;
+        return String.format("workers=%d, chunk size=%d, buffer size=%d, cipher %.2f MB/s per thread, fsync %.2f ms",
+                current.workers, current.chunkSize, current.bufferSize, current.cipherRate / (1024 * 1024),
+                current.fsyncNanos / 1e6);
+    }
+
+    private void recalibrate() {
+        try {
+            // if the run ends before it's idle, the next one calibrates at start
+            Files.deleteIfExists(profile);
+        } catch (IOException ex) {
+            Logger.getLogger(Tuning.class.getName()).log(Level.WARNING, null, ex);
+        }
+        Thread thread = new Thread(() -> {
+            try {
+                long idle = TimeUnit.MILLISECONDS.toNanos(IDLE_MILLIS);
+                while (System.nanoTime() - lastRecorded < idle) {
+                    Thread.sleep(IDLE_MILLIS);
+                }
+                if (calibrate(scratch)) {
+                    save(profile);
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } finally {
+                recalibrating.set(false);
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private double probeCipher(byte[] key, int threads) throws InterruptedException, ExecutionException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        byte[] payload = new byte[PROBE_PAYLOAD];
+        new Random().nextBytes(payload);
+        long until = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(PROBE_MILLIS);
+        long started = System.nanoTime();
+        long bytes = 0;
+        try {
+            List<Future<Long>> tasks = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                tasks.add(pool.submit(() -> {
+                    Key restored = Cipher.ENCRYPTOR.loadKey(key);
+                    javax.crypto.Cipher cipher = Cipher.ENCRYPTOR.init(restored);
+                    int blockSize = Cipher.ENCRYPTOR.blockSize(restored);
+                    ByteArrayOutputStream sink = new ByteArrayOutputStream(2 * PROBE_PAYLOAD);
+                    long done = 0;
+                    while (System.nanoTime() < until) {
+                        sink.reset();
+                        try (OutputStream blocks = new BlockOutputStream(cipher, blockSize, sink)) {
+                            blocks.write(payload);
+                        }
+                        done += payload.length;
+                    }
+                    return done;
+                }));
+            }
+            for (Future<Long> task : tasks) {
+                bytes += task.get();
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        return bytes / ((System.nanoTime() - started) / 1e9);
+    }
+
+    private long probeFsync(Path scratch) throws IOException {
+        Path file = Files.createTempFile(scratch.toAbsolutePath(), ".rsasample-probe", null);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            ByteBuffer page = ByteBuffer.allocate(4096);
+            long started = System.nanoTime();
+            for (int i = 0; i < PROBE_FSYNCS; i++) {
+                page.clear();
+                channel.write(page, (long) i * page.capacity());
+                channel.force(false);
+            }
+            return (System.nanoTime() - started) / PROBE_FSYNCS;
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private int probeBuffer(Path scratch) throws IOException {
+        Path file = Files.createTempFile(scratch.toAbsolutePath(), ".rsasample-probe", null);
+        try {
+            byte[] content = new byte[PROBE_FILE_SIZE];
+            new Random().nextBytes(content);
+            Files.write(file, content);
+            OutputStream discard = new OutputStream() {
+                @Override
+                public void write(int b) {
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                }
+            };
+
+            double[] rates = new double[BUFFER_SIZES.length];
+            double best = 0;
+            for (int i = 0; i < BUFFER_SIZES.length; i++) {
+                // best of two, the first read may still warm up the cache
+                for (int round = 0; round < 2; round++) {
+                    long started = System.nanoTime();
+                    try (InputStream in = Files.newInputStream(file)) {
+                        Streams.copy(in, discard, BUFFER_SIZES[i]);
+                    }
+                    rates[i] = Math.max(rates[i], PROBE_FILE_SIZE / ((System.nanoTime() - started) / 1e9));
+                }
+                best = Math.max(best, rates[i]);
+            }
+            int picked = Streams.BUFFER_SIZE;
+            for (int i = BUFFER_SIZES.length - 1; i >= 0; i--) {
+                if (rates[i] >= GOOD_ENOUGH * best) {
+                    picked = BUFFER_SIZES[i];
+                }
+            }
+            return picked;
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private String host() {
+        return String.join(":", String.valueOf(Runtime.getRuntime().availableProcessors()),
+                System.getProperty("os.arch"), System.getProperty("java.vm.version"),
+                String.valueOf(Provider.Keychain.CRYPTO_KEY_SIZE));
+    }
+
+    private static class Values {
+
+        private final int workers;
+        private final int chunkSize;
+        private final int bufferSize;
+        private final double cipherRate;
+        private final long fsyncNanos;
+
+        Values(int workers, int chunkSize, int bufferSize, double cipherRate, long fsyncNanos) {
+            this.workers = workers;
+            this.chunkSize = chunkSize;
+            this.bufferSize = bufferSize;
+            this.cipherRate = cipherRate;
+            this.fsyncNanos = fsyncNanos;
+        }
+
+    }
+
+}
@@ -0,0 +1,268 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Ivan.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.ivankot.rsasample.runtime;
+
+import com.ivankot.rsasample.crypto.Merkle;
+import com.ivankot.rsasample.crypto.Provider.Cipher.Builder;
+import com.ivankot.rsasample.metrics.Metrics;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Watcher keeps the application resident, watching an inbox directory and 
+ * processing every new or changed file into an outbox directory using a pool
+ * of workers. Events are debounced: a file is only picked up once it hasn't
+ * changed for a quiet period, so files still being written are left alone.
+ * Throughput and backlog are printed periodically
+ * @author Ivan
+ */
+public class Watcher {
+
+    /**
+     * Time a file has to stay unchanged before it is processed
+     */
+    public static final long QUIET_PERIOD_MILLIS = 2000;
+
+    /**
+     * How often stats are printed
+     */
+    public static final long STATS_PERIOD_SECONDS = 30;
+
+    private static final String MSG_STATS = "Processed %d (%.1f files/s, %.2f MB/s), failed %d, backlog %d (settling %d, queued %d)";
+
+    private final Supplier<Builder> builders;
+    private final Execution execution;
+
+    private final Map<Path, Pending> pending = new ConcurrentHashMap<>();
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicInteger queued = new AtomicInteger();
+
+    private ExecutorService pool;
+    private long lastProcessed = 0;
+    private long lastBytes = 0;
+    private long lastStats;
+
+    /**
+     * Creates a watcher
+     * @param builders supplies builders configured for the action, input and
+     * output are set per file
+     * @param execution how files are processed at the same time
+     */
+    public Watcher(Supplier<Builder> builders, Execution execution) {
+        this.builders = builders;
+        this.execution = execution;
+    }
+
+    /**
+     * Watches the inbox until the thread is interrupted or the inbox goes away,
+     * files already in the inbox without an up to date output are processed 
+     * first
+     * @param inbox directory to watch
+     * @param outbox directory to write results to, created if missing
+     * @return true if watching ended without an error
+     */
+    public boolean run(Path inbox, Path outbox) {
+        boolean result = false;
+        pool = execution.newExecutor();
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        lastStats = System.nanoTime();
+        Metrics.INSTANCE.gauge(Metrics.GAUGE_QUEUE_DEPTH, Metrics.GAUGE_QUEUE_DEPTH_HELP,
+                () -> pending.size() + queued.get());
+
+        try (WatchService watchService = inbox.getFileSystem().newWatchService()) {
+            Files.createDirectories(outbox);
+            inbox.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            scan(inbox, outbox);
+
+            scheduler.scheduleWithFixedDelay(logged(() -> dispatch(outbox)), QUIET_PERIOD_MILLIS / 4,
+                    QUIET_PERIOD_MILLIS / 4, TimeUnit.MILLISECONDS);
+            scheduler.scheduleAtFixedRate(logged(this::printStats), STATS_PERIOD_SECONDS, STATS_PERIOD_SECONDS, TimeUnit.SECONDS);
+
+            boolean valid = true;
+            while (valid) {
+                WatchKey key = watchService.take();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        scan(inbox, outbox);
+                    } else {
+                        touch(inbox.resolve((Path) event.context()));
+                    }
+                }
+                valid = key.reset();
+            }
+            result = true;
+        } catch (IOException | ClosedWatchServiceException ex) {
+            Logger.getLogger(Watcher.class.getName()).log(Level.SEVERE, null, ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            result = true;
+        } finally {
+            scheduler.shutdownNow();
+            pool.shutdown();
+        }
+        return result;
+    }
+
+    private void scan(Path inbox, Path outbox) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(inbox)) {
+            for (Path file : files) {
+                Path target = outbox.resolve(file.getFileName());
+                if (!Files.exists(target)
+                        || Files.getLastModifiedTime(target).compareTo(Files.getLastModifiedTime(file)) < 0) {
+                    touch(file);
+                }
+            }
+        }
+    }
+
+    private void touch(Path file) {
+        String name = file.getFileName().toString();
+        // hidden files and integrity tags written next to encrypted files
+        if (!name.startsWith(".") && !name.endsWith(Merkle.EXTENSION)) {
+            pending.put(file, new Pending(System.currentTimeMillis(), -1));
+        }
+    }
+
+    private void dispatch(Path outbox) {
+        // a re-calibration may change the number of workers while watching
+        execution.resize(pool);
+        long now = System.currentTimeMillis();
+        for (Map.Entry<Path, Pending> item : pending.entrySet()) {
+            Path file = item.getKey();
+            Pending state = item.getValue();
+            if (now - state.getTouched() < QUIET_PERIOD_MILLIS) {
+                continue;
+            }
+            try {
+                if (!Files.isRegularFile(file)) {
+                    pending.remove(file, state);
+                    continue;
+                }
+                long size = Files.size(file);
+                if (size != state.getSize()) {
+                    // still growing, or seen for the first time: wait for another quiet period
+                    pending.replace(file, state, new Pending(now, size));
+                } else if (pending.remove(file, state)) {
+                    queued.incrementAndGet();
+                    pool.submit(execution.bounded(() -> process(file, outbox.resolve(file.getFileName()), size)));
+                }
+            } catch (IOException ex) {
+                pending.remove(file, state);
+                Logger.getLogger(Watcher.class.getName()).log(Level.WARNING, null, ex);
+            }
+        }
+    }
+
+    private void process(Path file, Path target, long size) {
+        try {
+            long started = System.nanoTime();
+            boolean done = builders.get()
+                    .background(false)
+                    .input(file.toString())
+                    .output(target.toString())
+                    .doFinal();
+            if (done) {
+                Tuning.INSTANCE.record(size, System.nanoTime() - started);
+                processed.incrementAndGet();
+                bytes.addAndGet(size);
+            } else {
+                failed.incrementAndGet();
+            }
+        } finally {
+            queued.decrementAndGet();
+        }
+    }
+
+    private static Runnable logged(Runnable task) {
+        // an exception escaping a scheduled task would silently cancel its later runs
+        return () -> {
+            try {
+                task.run();
+            } catch (RuntimeException ex) {
+                Logger.getLogger(Watcher.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        };
+    }
+
+    private void printStats() {
+        long now = System.nanoTime();
+        double seconds = Math.max(1e-9, (now - lastStats) / 1e9);
+        long currentProcessed = processed.get();
+        long currentBytes = bytes.get();
+        int settling = pending.size();
+        int inProgress = queued.get();
+
+        System.out.println(String.format(MSG_STATS, currentProcessed,
+                (currentProcessed - lastProcessed) / seconds,
+                (currentBytes - lastBytes) / seconds / (1024 * 1024),
+                failed.get(), settling + inProgress, settling, inProgress));
+
+        lastStats = now;
+        lastProcessed = currentProcessed;
+        lastBytes = currentBytes;
+    }
+
+    private static class Pending {
+
+        private final long touched;
+        private final long size;
+
+        Pending(long touched, long size) {
+            this.touched = touched;
+            this.size = size;
+        }
+
+        long getTouched() {
+            return touched;
+        }
+
+        long getSize() {
+            return size;
+        }
+
+    }
+
+}
@@ -0,0 +1,318 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Ivan.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.ivankot.rsasample.crypto;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+
+/**
+ * Reactive counterpart of the Builder for in-process streams: a 
+ * Flow.Processor that encrypts or decrypts a stream of byte buffers with 
+ * Provider.Cipher key handling and the same block layout as the Builder.
+ * It honors downstream demand and never holds more than a bounded window of
+ * output chunks: upstream is only asked for the next buffer once the 
+ * current one has been consumed and there is room in the window.
+ * Supports a single subscriber; compression is not applied
+ * @author Ivan
+ */
+public class CipherProcessor implements Flow.Processor<ByteBuffer, ByteBuffer> {
+
+    /**
+     * Default number of output chunks buffered ahead of downstream demand
+     */
+    public static final int DEFAULT_WINDOW = 16;
+
+    /**
+     * Default size of an output chunk
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
+    private final Cipher cipher;
+    private final byte[] block;
+    private final int outputBlockSize;
+    private final int chunkSize;
+    private final int window;
+
+    private final Deque<ByteBuffer> ready = new ArrayDeque<>();
+    private final AtomicInteger wip = new AtomicInteger();
+    private final AtomicLong demand = new AtomicLong();
+    // handed over by onNext on the upstream thread, consumed by whichever thread drains
+    private final AtomicReference<ByteBuffer> current = new AtomicReference<>();
+
+    private volatile Flow.Subscription upstream = null;
+    private volatile Flow.Subscriber<? super ByteBuffer> downstream = null;
+    private volatile boolean requested = false;
+    private volatile boolean upstreamDone = false;
+    private volatile boolean cancelled = false;
+    private volatile Throwable failure = null;
+
+    // only touched while draining
+    private int position = 0;
+    private boolean flushed = false;
+    private boolean terminated = false;
+
+    /**
+     * Creates a processor
+     * @param strategy Provider.Cipher.ENCRYPTOR with a private key or 
+     * Provider.Cipher.DECRYPTOR with a public key
+     * @param key encoded key
+     * @param chunkSize approximate size of output chunks
+     * @param window number of output chunks buffered at most
+     * @throws GeneralSecurityException if the key can't be loaded
+     */
+    public CipherProcessor(Provider.Cipher strategy, byte[] key, int chunkSize, int window) throws GeneralSecurityException {
+        Key cryptoKey = strategy.loadKey(key);
+        this.cipher = strategy.init(cryptoKey);
+        this.block = new byte[strategy.blockSize(cryptoKey)];
+        this.outputBlockSize = cipher.getOutputSize(block.length);
+        this.chunkSize = Math.max(outputBlockSize, chunkSize / outputBlockSize * outputBlockSize);
+        this.window = Math.max(1, window);
+    }
+
+    /**
+     * Creates an encrypting processor with default chunk and window sizes
+     * @param privateKey encoded private key
+     * @return CipherProcessor instance
+     * @throws GeneralSecurityException if the key can't be loaded
+     */
+    public static CipherProcessor encryptor(byte[] privateKey) throws GeneralSecurityException {
+        return new CipherProcessor(Provider.Cipher.ENCRYPTOR, privateKey, DEFAULT_CHUNK_SIZE, DEFAULT_WINDOW);
+    }
+
+    /**
+     * Creates a decrypting processor with default chunk and window sizes
+     * @param publicKey encoded public key
+     * @return CipherProcessor instance
+     * @throws GeneralSecurityException if the key can't be loaded
+     */
+    public static CipherProcessor decryptor(byte[] publicKey) throws GeneralSecurityException {
+        return new CipherProcessor(Provider.Cipher.DECRYPTOR, publicKey, DEFAULT_CHUNK_SIZE, DEFAULT_WINDOW);
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+        if (null == subscriber) {
+            throw new NullPointerException();
+        }
+        synchronized (this) {
+            if (null != downstream) {
+                subscriber.onSubscribe(new Flow.Subscription() {
+                    @Override
+                    public void request(long n) {
+                    }
+
+                    @Override
+                    public void cancel() {
+                    }
+                });
+                subscriber.onError(new IllegalStateException("Only a single subscriber is supported"));
+                return;
+            }
+            downstream = subscriber;
+        }
+        subscriber.onSubscribe(new Flow.Subscription() {
+            @Override
+            public void request(long n) {
+                if (n <= 0) {
+                    fail(new IllegalArgumentException("Demand has to be positive, got " + n));
+                } else {
+                    demand.getAndAccumulate(n, (current, added) -> current + added < 0 ? Long.MAX_VALUE : current + added);
+                }
+                drain();
+            }
+
+            @Override
+            public void cancel() {
+                cancelled = true;
+                cancelUpstream();
+            }
+        });
+        drain();
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        if (null != upstream || cancelled) {
+            subscription.cancel();
+            return;
+        }
+        upstream = subscription;
+        drain();
+    }
+
+    @Override
+    public void onNext(ByteBuffer item) {
+        // current is set before requested is cleared, see step
+        current.set(item);
+        requested = false;
+        drain();
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        fail(throwable);
+        drain();
+    }
+
+    @Override
+    public void onComplete() {
+        upstreamDone = true;
+        drain();
+    }
+
+    private void fail(Throwable throwable) {
+        if (null == failure) {
+            failure = throwable;
+        }
+    }
+
+    private void cancelUpstream() {
+        Flow.Subscription subscription = upstream;
+        if (null != subscription) {
+            subscription.cancel();
+        }
+    }
+
+    private void drain() {
+        if (wip.getAndIncrement() != 0) {
+            return;
+        }
+        int missed = 1;
+        do {
+            Flow.Subscriber<? super ByteBuffer> subscriber = downstream;
+            if (null != subscriber && !terminated) {
+                step(subscriber);
+            }
+            missed = wip.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    private void step(Flow.Subscriber<? super ByteBuffer> subscriber) {
+        while (true) {
+            if (cancelled) {
+                terminate();
+                return;
+            }
+            if (null != failure) {
+                terminate();
+                cancelUpstream();
+                subscriber.onError(failure);
+                return;
+            }
+
+            while (!ready.isEmpty() && demand.get() > 0) {
+                if (demand.get() != Long.MAX_VALUE) {
+                    demand.decrementAndGet();
+                }
+                subscriber.onNext(ready.poll());
+            }
+
+            if (ready.size() >= window) {
+                return;
+            }
+
+            ByteBuffer input = current.get();
+            if (null != input && input.hasRemaining()) {
+                try {
+                    ByteBuffer chunk = process(input);
+                    if (chunk.hasRemaining()) {
+                        ready.add(chunk);
+                    }
+                } catch (IllegalBlockSizeException | BadPaddingException ex) {
+                    fail(ex);
+                }
+                continue;
+            }
+            if (null != input) {
+                // only the buffer consumed here, onNext may have handed over the next one meanwhile
+                current.compareAndSet(input, null);
+                continue;
+            }
+
+            if (upstreamDone) {
+                if (!flushed) {
+                    flushed = true;
+                    try {
+                        if (position > 0) {
+                            ready.add(ByteBuffer.wrap(cipher.doFinal(block, 0, position)));
+                            position = 0;
+                        }
+                    } catch (IllegalBlockSizeException | BadPaddingException ex) {
+                        fail(ex);
+                    }
+                    continue;
+                }
+                if (ready.isEmpty()) {
+                    terminate();
+                    subscriber.onComplete();
+                }
+                return;
+            }
+
+            Flow.Subscription subscription = upstream;
+            // a buffer handed over after current was read above is picked up
+            // by the drain loop, it must not be followed by another request
+            if (!requested && null == current.get() && null != subscription) {
+                requested = true;
+                // may deliver onNext right here, which is picked up by the drain loop
+                subscription.request(1);
+            }
+            return;
+        }
+    }
+
+    private ByteBuffer process(ByteBuffer input) throws IllegalBlockSizeException, BadPaddingException {
+        ByteBuffer chunk = ByteBuffer.allocate(chunkSize);
+        while (input.hasRemaining() && chunk.remaining() >= outputBlockSize) {
+            int count = Math.min(input.remaining(), block.length - position);
+            input.get(block, position, count);
+            position += count;
+            if (position == block.length) {
+                chunk.put(cipher.doFinal(block, 0, position));
+                position = 0;
+            }
+        }
+        chunk.flip();
+        return chunk;
+    }
+
+    private void terminate() {
+        terminated = true;
+        ready.clear();
+        current.set(null);
+    }
+
+}